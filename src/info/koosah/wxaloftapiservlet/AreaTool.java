@@ -0,0 +1,319 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.File;
+import java.sql.*;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @author n5jrn@me.com
+ * @since 2026-10-18
+ *
+ * A command-line tool for recomputing obs_area, which is otherwise only
+ * filled in when an observation is first recorded. Needed after adding
+ * an area or moving one. Observations are read in ID-ordered chunks,
+ * area membership is computed in parallel, and each chunk's old obs_area
+ * rows are replaced in a single transaction, so the tool can be stopped
+ * and resumed (with -s) at any time. Rows are inserted with insert ignore
+ * (obs_area's index keeps them unique), so live ingest adding rows for the
+ * same observations meanwhile does no harm. First, rows for areas that no
+ * longer exist are removed.
+ */
+public class AreaTool
+{
+    private static final String MYNAME = "AreaTool";
+    private static String DCONTEXT = "META-INF" + File.separator + "context.xml";
+
+    /* defaults */
+    private static final int DCHUNK = 20000;
+    private static final int INSERT_ROWS = 500;
+    private static final int SPLIT = 1024;
+
+    /**
+     * Entry point for the command-line utility. Syntax:
+     * [-c context] [-p threads] [-n chunk] [-r rows-per-second]
+     * [-s after-id] area|all [from [to]]
+     * Area is a name or ID. From and to are ISO-8601 instants and bound
+     * the observation times considered; the default is all of them.
+     */
+    public static void main(String[] args)
+    {
+        String context = DCONTEXT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunk = DCHUNK;
+        double maxRate = 0.0;
+        long after = 0L;
+        String area = null, rawFrom = null, rawTo = null;
+
+        /* parse arguments */
+        try {
+            for (int i=0; i<args.length; i++) {
+                String arg = args[i];
+                if (arg.startsWith("-") && arg.length() == 2) {
+                    if (i + 1 >= args.length)
+                        usage("missing value for " + arg);
+                    String val = args[++i];
+                    switch (arg.charAt(1)) {
+                    case 'c': context = val; break;
+                    case 'p': threads = Integer.parseInt(val); break;
+                    case 'n': chunk = Integer.parseInt(val); break;
+                    case 'r': maxRate = Double.parseDouble(val); break;
+                    case 's': after = Long.parseLong(val); break;
+                    default: usage("unknown option " + arg); break;
+                    }
+                } else if (area == null) {
+                    area = arg;
+                } else if (rawFrom == null) {
+                    rawFrom = arg;
+                } else if (rawTo == null) {
+                    rawTo = arg;
+                } else {
+                    usage("too many arguments");
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage("invalid number: " + e.getMessage());
+        }
+        if (area == null)
+            usage("expecting area name or ID, or \"all\"");
+        if (threads < 1 || chunk < 1)
+            usage("threads and chunk size must be positive");
+        long from = 0L, to = Long.MAX_VALUE;
+        try {
+            if (rawFrom != null)
+                from = Instant.parse(rawFrom).toEpochMilli();
+            if (rawTo != null)
+                to = Instant.parse(rawTo).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            usage("invalid time: " + e.getParsedString());
+        }
+
+        /* get connection */
+        Connection conn = null;
+        try {
+            conn = DBUtils.getConnection(context);
+            if (conn == null) {
+                System.err.format("%s: unable to get connection%n", MYNAME);
+                System.exit(1);
+            }
+        } catch (SQLException e) {
+            System.err.format("%s: %s%n", MYNAME, e.getMessage());
+            System.err.format("%s: unable to get connection%n", MYNAME);
+            System.exit(1);
+        }
+
+        /* which areas? */
+        List<Areas.Area> areas = new ArrayList<Areas.Area>();
+        try {
+            for (Areas.Area a : Areas.load(conn)) {
+                if ("all".equals(area) || area.equals(a.getName()) || area.equals(Integer.toString(a.getId())))
+                    areas.add(a);
+            }
+        } catch (SQLException e) {
+            System.err.format("%s: %s%n", MYNAME, e.getMessage());
+            System.exit(1);
+        }
+        if (areas.isEmpty()) {
+            System.err.format("%s: unknown area %s%n", MYNAME, area);
+            System.exit(1);
+        }
+
+        /* do it */
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long started = System.nanoTime();
+        long total = 0L, members = 0L;
+        try {
+            conn.setAutoCommit(false);
+            long orphans = purgeOrphans(conn, chunk);
+            if (orphans > 0L)
+                System.out.format("%d rows for deleted areas removed%n", orphans);
+            while (true) {
+                long chunkStart = System.nanoTime();
+                Chunk c = read(conn, after, from, to, chunk);
+                if (c.count == 0)
+                    break;
+                pool.invoke(new Membership(c, areas, 0, c.count));
+                members += write(conn, c, areas);
+                conn.commit();
+                after = c.ids[c.count - 1];
+                total += c.count;
+                double elapsed = (System.nanoTime() - started) / 1e9;
+                System.out.format("%d observations, %d memberships, last ID %d, %.0f/s%n",
+                    total, members, after, total / elapsed);
+                if (c.count < chunk)
+                    break;
+
+                /* throttle, to go easy on a live database */
+                if (maxRate > 0.0) {
+                    long wanted = (long) (c.count / maxRate * 1000.0);
+                    long took = (System.nanoTime() - chunkStart) / 1000000L;
+                    if (wanted > took)
+                        Thread.sleep(wanted - took);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.format("%s: %s%n", MYNAME, e.getMessage());
+            System.err.format("%s: failed; resume with -s %d%n", MYNAME, after);
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.err.format("%s: interrupted; resume with -s %d%n", MYNAME, after);
+            System.exit(1);
+        }
+        System.out.println("Done.");
+        System.exit(0);
+    }
+
+    private static void usage(String message)
+    {
+        System.err.format("%s: %s%n", MYNAME, message);
+        System.err.format("usage: %s [-c context] [-p threads] [-n chunk] [-r rows-per-second] [-s after-id] area|all [from [to]]%n", MYNAME);
+        System.exit(2);
+    }
+
+    /* One chunk of observations, with room for the results. */
+    private static class Chunk {
+        final long[] ids;
+        final double[] lats;
+        final double[] lons;
+        final int[][] areas;
+        int count = 0;
+
+        Chunk(int size) {
+            ids = new long[size];
+            lats = new double[size];
+            lons = new double[size];
+            areas = new int[size][];
+        }
+    }
+
+    private static Chunk read(Connection conn, long after, long from, long to, int size) throws SQLException
+    {
+        Chunk c = new Chunk(size);
+        try (PreparedStatement stmt = conn.prepareStatement("select id, latitude, longitude from observations where id > ? and observed >= ? and observed < ? order by id limit ?")) {
+            stmt.setLong(1, after);
+            stmt.setTimestamp(2, new Timestamp(from));
+            stmt.setTimestamp(3, new Timestamp(Math.min(to, 253402300799000L)));
+            stmt.setInt(4, size);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                c.ids[c.count] = rs.getLong(1);
+                c.lats[c.count] = rs.getDouble(2);
+                c.lons[c.count] = rs.getDouble(3);
+                c.count++;
+            }
+        }
+        return c;
+    }
+
+    /* Computes area membership for a range of a chunk, splitting the work
+       until the pieces are small. */
+    private static class Membership extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Chunk c;
+        private final List<Areas.Area> areas;
+        private final int start, end;
+
+        Membership(Chunk c, List<Areas.Area> areas, int start, int end) {
+            this.c = c;
+            this.areas = areas;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute() {
+            if (end - start > SPLIT) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new Membership(c, areas, start, mid), new Membership(c, areas, mid, end));
+                return;
+            }
+            int[] found = new int[areas.size()];
+            for (int i=start; i<end; i++) {
+                int n = 0;
+                for (Areas.Area a : areas)
+                    if (a.contains(c.lats[i], c.lons[i]))
+                        found[n++] = a.getId();
+                int[] result = new int[n];
+                System.arraycopy(found, 0, result, 0, n);
+                c.areas[i] = result;
+            }
+        }
+    }
+
+    /* Remove obs_area rows for areas that no longer exist, a chunk at a
+       time so as not to hold locks on a live database for long. */
+    private static long purgeOrphans(Connection conn, int size) throws SQLException
+    {
+        long ret = 0L;
+        try (PreparedStatement stmt = conn.prepareStatement("delete from obs_area where not exists (select 1 from areas where areas.id = obs_area.area_id) limit ?")) {
+            stmt.setInt(1, size);
+            int n;
+            do {
+                n = stmt.executeUpdate();
+                conn.commit();
+                ret += n;
+            } while (n == size);
+        }
+        return ret;
+    }
+
+    /* Replace the obs_area rows for a chunk and the areas being rebuilt. */
+    private static long write(Connection conn, Chunk c, List<Areas.Area> areas) throws SQLException
+    {
+        /* not a range delete: with a time bound, the chunk's IDs may not
+           be contiguous */
+        StringBuilder sb = new StringBuilder("delete from obs_area where area_id in (");
+        for (int i=0; i<areas.size(); i++)
+            sb.append(i == 0 ? "?" : ", ?");
+        sb.append(") and observation_id in (");
+        for (int start=0; start<c.count; start+=INSERT_ROWS) {
+            int end = Math.min(c.count, start + INSERT_ROWS);
+            StringBuilder sql = new StringBuilder(sb);
+            for (int i=start; i<end; i++)
+                sql.append(i == start ? "?" : ", ?");
+            sql.append(")");
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                int n = 1;
+                for (Areas.Area a : areas)
+                    stmt.setInt(n++, a.getId());
+                for (int i=start; i<end; i++)
+                    stmt.setLong(n++, c.ids[i]);
+                stmt.executeUpdate();
+            }
+        }
+
+        /* multi-row inserts, INSERT_ROWS at a time */
+        long written = 0L;
+        List<long[]> pending = new ArrayList<long[]>(INSERT_ROWS);
+        for (int i=0; i<c.count; i++) {
+            for (int areaId : c.areas[i]) {
+                pending.add(new long[] { c.ids[i], areaId });
+                if (pending.size() == INSERT_ROWS) {
+                    written += insert(conn, pending);
+                    pending.clear();
+                }
+            }
+        }
+        if (!pending.isEmpty())
+            written += insert(conn, pending);
+        return written;
+    }
+
+    private static int insert(Connection conn, List<long[]> rows) throws SQLException
+    {
+        StringBuilder sb = new StringBuilder("insert ignore into obs_area (observation_id, area_id) values ");
+        for (int i=0; i<rows.size(); i++)
+            sb.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        try (PreparedStatement stmt = conn.prepareStatement(sb.toString())) {
+            int n = 1;
+            for (long[] row : rows) {
+                stmt.setLong(n++, row[0]);
+                stmt.setInt(n++, (int) row[1]);
+            }
+            return stmt.executeUpdate();
+        }
+    }
+}
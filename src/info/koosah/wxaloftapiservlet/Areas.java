@@ -0,0 +1,185 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+/**
+ * An in-memory copy of the areas table. The table is tiny and changes
+ * rarely, so the servlets consult this instead of querying it on every
+ * request. Once there is a copy, it is always served: when it goes stale
+ * (on invalidation or after TTL), one caller reloads it while the rest
+ * keep using the old copy, which also stays in use if the reload fails.
+ * As in Clients, a copy read across an invalidation is itself stale.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Areas {
+    private static final Logger LOGGER = Logger.getLogger(Areas.class.getCanonicalName());
+
+    /** Radius of interest (in km) around each air terminal. */
+    public static final double RADIUS = 350.0;
+
+    /* How long a copy of the table is good for. Coherence invalidates it
+       as soon as the table changes, so this is just a safety net. */
+    private static final long TTL = 15L * 60L * 1000L;
+
+    /* After a failed reload, how long to keep serving the old copy
+       before trying again, in ms. */
+    private static final long RETRY = 5000L;
+
+    private static volatile List<Area> cached = null;
+    private static volatile long loaded = 0L;
+    private static volatile long loadedGeneration = -1L;
+    private static volatile long lastFailure = 0L;
+    private static final AtomicLong generation = new AtomicLong();
+    private static final ReentrantLock loading = new ReentrantLock();
+
+    /**
+     * A row in the areas table.
+     */
+    public static class Area {
+        private final int id;
+        private final String name;
+        private final String timezone;
+        private final double latitude;
+        private final double longitude;
+
+        public Area(int id, String name, String timezone, double latitude, double longitude) {
+            this.id = id;
+            this.name = name;
+            this.timezone = timezone;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public String getTimezone() { return timezone; }
+        public double getLatitude() { return latitude; }
+        public double getLongitude() { return longitude; }
+
+        /**
+         * Does the specified point fall within this area?
+         */
+        public boolean contains(double lat, double lon) {
+            return Geo.kilometers(latitude, longitude, lat, lon) <= RADIUS;
+        }
+    }
+
+    /**
+     * Get all areas, reading the table if our copy is stale.
+     * @throws NamingException or SQLException only if we have no copy
+     *                  at all and can't read one.
+     */
+    public static List<Area> get() throws NamingException, SQLException {
+        List<Area> ret = cached;
+        if (ret != null && isFresh())
+            return ret;
+
+        /* with nothing to serve, wait for whoever is reading the table */
+        if (ret == null) {
+            loading.lock();
+            try {
+                ret = cached;
+                return ret != null ? ret : reload();
+            } finally {
+                loading.unlock();
+            }
+        }
+
+        /* otherwise one caller reloads, and the rest use the old copy */
+        if (System.currentTimeMillis() - lastFailure < RETRY || !loading.tryLock())
+            return ret;
+        try {
+            return isFresh() ? cached : reload();
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.WARNING, "Unable to reload areas, using old copy", e);
+            lastFailure = System.currentTimeMillis();
+            return ret;
+        } finally {
+            loading.unlock();
+        }
+    }
+
+    private static boolean isFresh() {
+        return loadedGeneration == generation.get() && System.currentTimeMillis() - loaded <= TTL;
+    }
+
+    /* Read the table; call only with loading held. */
+    private static List<Area> reload() throws NamingException, SQLException {
+        long g = generation.get();
+        List<Area> ret = null;
+        try (Connection conn = getConnection()) {
+            ret = load(conn);
+        }
+        cached = ret;
+        loaded = System.currentTimeMillis();
+        loadedGeneration = g;
+        return ret;
+    }
+
+    /**
+     * Mark our copy of the table stale, so the next get() reads it again.
+     */
+    public static void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Look up an area by ID or name, as accepted by the area= parameter.
+     * @return          The area, or null if no such area.
+     */
+    public static Area find(String idOrName) throws NamingException, SQLException {
+        int id = -1;
+        try {
+            id = Integer.parseInt(idOrName);
+        } catch (NumberFormatException e) {
+            id = -1;
+        }
+        for (Area a : get()) {
+            if (id >= 0 ? a.getId() == id : a.getName().equals(idOrName))
+                return a;
+        }
+        return null;
+    }
+
+    /**
+     * Read the areas table.
+     */
+    public static List<Area> load(Connection conn) throws SQLException {
+        List<Area> ret = new ArrayList<Area>();
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("select id, name, timezone, latitude, longitude from areas");
+            while (rs.next())
+                ret.add(new Area(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getDouble(4), rs.getDouble(5)));
+        }
+        return Collections.unmodifiableList(ret);
+    }
+
+    /**
+     * Return the areas a point falls within.
+     */
+    public static List<Area> containing(List<Area> areas, double lat, double lon) {
+        List<Area> ret = new ArrayList<Area>(2);
+        for (Area a : areas)
+            if (a.contains(lat, lon))
+                ret.add(a);
+        return ret;
+    }
+
+    private static Connection getConnection() throws NamingException, SQLException {
+        Context c = (Context) (new InitialContext()).lookup("java:comp/env");
+        DataSource d = (DataSource) c.lookup("jdbc/WxDB");
+        return d.getConnection();
+    }
+}
@@ -190,7 +190,8 @@ public class AuthTool
             System.exit(1);
         }
 
-        /* update database */
+        /* update database; the clients_update trigger logs this in
+           change_log, so running servlets drop the old authenticator */
         try (PreparedStatement stmt = conn.prepareStatement("update clients set auth = ? where id = ?")) {
             stmt.setBytes(1, hash(auth));
             stmt.setInt(2, clientId);
@@ -0,0 +1,352 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.*;
+import javax.naming.NamingException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A circuit breaker around read queries, with a cache of the last good
+ * result of each. While the database is healthy, queries run as usual
+ * and their results are remembered. Once too many in a row fail to
+ * connect, time out or are slow (e.g. during a big purge), the breaker
+ * opens: requests get the last good result, marked stale, and a single
+ * background query per result refreshes it. The first one of those to
+ * succeed promptly closes the breaker again. Other errors (including
+ * ReadRouter.BusyException, which is our own load shedding) don't count
+ * against the database. Even when closed, a request for a result that
+ * is already being queried gets the cached copy rather than piling on,
+ * or if there is none, waits for that query's result.
+ *
+ * Results are cached per key, i.e. per distinct request (for ObsData,
+ * each combination of areas, time zone, duration and thinning), not per
+ * area: nothing is derived from another key's result. So while the
+ * breaker is open, a request whose exact key has never been answered
+ * (or has been evicted) gets an OpenException, even if the same area is
+ * cached under another key. The cache is bounded by the total size of
+ * the results in it, and at most MAX_QUEUED background refreshes wait
+ * at once; beyond that, refreshes are dropped, to be asked for again by
+ * the next request for that key.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Breaker {
+    private static final Logger LOGGER = Logger.getLogger(Breaker.class.getCanonicalName());
+
+    /* Queries slower than this, in ms, count as failures. */
+    private static final long SLOW = 5000L;
+
+    /* This many failures in a row open the breaker. */
+    private static final int THRESHOLD = 3;
+
+    /* Cached results older than this, in ms, are never served. */
+    private static final long MAX_STALE = 15L * 60L * 1000L;
+
+    /* How much to remember, in characters of results. */
+    private static final long MAX_CHARS = 8L * 1024L * 1024L;
+
+    /* How long to wait for someone else's query, in ms. */
+    private static final long MAX_WAIT = 30000L;
+
+    /* Background refreshes: how many run at once, and how many may wait. */
+    private static final int REFRESHERS = 2;
+    private static final int MAX_QUEUED = 32;
+
+    private static final Breaker INSTANCE = new Breaker();
+
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private volatile long openedAt = 0L;
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<String, CompletableFuture<String>>();
+    private final ThreadPoolExecutor refresher = new ThreadPoolExecutor(REFRESHERS, REFRESHERS,
+      0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED), r -> {
+        Thread t = new Thread(r, "breaker");
+        t.setDaemon(true);
+        return t;
+    });
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long cachedChars = 0L;
+
+    /* statistics */
+    private final LongAdder fresh = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private Breaker() { }
+
+    public static Breaker getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A query whose result is worth keeping. It must not refer to the
+     * request or response, since it may be run again in the background
+     * after they are gone.
+     */
+    public interface Query {
+        String run() throws NamingException, SQLException;
+    }
+
+    /**
+     * Thrown when the breaker is open and there is nothing cached.
+     */
+    public static class OpenException extends SQLException {
+        private static final long serialVersionUID = -8127164064356823306L;
+
+        public OpenException() {
+            super("Database unavailable and no cached result");
+        }
+    }
+
+    /**
+     * The result of a query, possibly stale.
+     */
+    public static class Result {
+        private final String body;
+        private final long age;
+
+        private Result(String body, long age) {
+            this.body = body;
+            this.age = age;
+        }
+
+        public String getBody() { return body; }
+        public long getAge() { return age; }
+        public boolean isStale() { return age > 0L; }
+
+        /**
+         * Mark a response as stale, if it is.
+         */
+        public void addHeaders(HttpServletResponse resp) {
+            if (!isStale())
+                return;
+            resp.setHeader("Warning", "110 - \"Response is Stale\"");
+            resp.setHeader("Age", Long.toString(age / 1000L));
+        }
+    }
+
+    /* A remembered result. */
+    private static class Entry {
+        final String body;
+        final long time;
+
+        Entry(String body, long time) {
+            this.body = body;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Get a result, by running the query or from the cache.
+     * @param key       Identifies the result; requests that would get the
+     *                  same result must have the same key.
+     * @param query     The query.
+     * @return          The result.
+     * @throws OpenException if the breaker is open and nothing is cached.
+     */
+    public Result fetch(String key, Query query) throws NamingException, SQLException {
+        Entry cached = null;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.time > MAX_STALE)
+            cached = null;
+
+        if (openedAt == 0L) {
+            CompletableFuture<String> mine = new CompletableFuture<String>();
+            CompletableFuture<String> theirs = inFlight.putIfAbsent(key, mine);
+            if (theirs == null) {
+                try {
+                    String body = run(key, query);
+                    mine.complete(body);
+                    fresh.increment();
+                    return new Result(body, 0L);
+                } catch (NamingException|SQLException e) {
+                    mine.completeExceptionally(e);
+                    if (cached == null)
+                        throw e;
+                    LOGGER.log(Level.WARNING, "Query failed, serving cached result", e);
+                } finally {
+                    inFlight.remove(key, mine);
+                }
+            } else if (cached == null) {
+                /* nothing to serve meanwhile, so share the one in flight */
+                String body = await(theirs);
+                shared.increment();
+                return new Result(body, 0L);
+            }
+        } else {
+            refresh(key, query);
+            if (cached == null) {
+                rejected.increment();
+                throw new OpenException();
+            }
+        }
+        stale.increment();
+        return new Result(cached.body, Math.max(1L, now - cached.time));
+    }
+
+    /* Wait for someone else's query. */
+    private String await(CompletableFuture<String> future) throws NamingException, SQLException {
+        try {
+            return future.get(MAX_WAIT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NamingException)
+                throw (NamingException) cause;
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            throw new SQLException("Query failed", cause);
+        } catch (TimeoutException e) {
+            throw new SQLTimeoutException("Timed out waiting for query", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for query", e);
+        }
+    }
+
+    /* Run a query and remember how it went. */
+    private String run(String key, Query query) throws NamingException, SQLException {
+        long start = System.currentTimeMillis();
+        String body = null;
+        try {
+            body = query.run();
+        } catch (SQLException e) {
+            if (isDatabaseFault(e))
+                failure();
+            throw e;
+        }
+        long end = System.currentTimeMillis();
+        remember(key, new Entry(body, end));
+        if (end - start > SLOW)
+            failure();
+        else
+            success();
+        return body;
+    }
+
+    /* Does this look like trouble with the database itself, i.e. it
+       couldn't be reached or took too long, as opposed to our own load
+       shedding or something wrong with the query? */
+    private static boolean isDatabaseFault(SQLException e) {
+        if (e instanceof ReadRouter.BusyException)
+            return false;
+        if (e instanceof SQLTimeoutException || e instanceof SQLTransientConnectionException
+          || e instanceof SQLNonTransientConnectionException || e instanceof SQLRecoverableException)
+            return true;
+        /* class 08 is connection exceptions; 70100 is MySQL's query
+           interrupted (e.g. by a statement timeout) */
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("08") || state.equals("70100"));
+    }
+
+    /* Cache a result, dropping the least recently used to make room.
+       Results too big to be worth keeping are not kept. */
+    private void remember(String key, Entry entry) {
+        long size = entry.body.length();
+        synchronized (cache) {
+            Entry old = cache.remove(key);
+            if (old != null)
+                cachedChars -= old.body.length();
+            if (size > MAX_CHARS / 4)
+                return;
+            Iterator<Entry> it = cache.values().iterator();
+            while (cachedChars + size > MAX_CHARS && it.hasNext()) {
+                cachedChars -= it.next().body.length();
+                it.remove();
+            }
+            cache.put(key, entry);
+            cachedChars += size;
+        }
+    }
+
+    /* Refresh a result in the background, unless that's already going on. */
+    private void refresh(String key, Query query) {
+        CompletableFuture<String> mine = new CompletableFuture<String>();
+        if (inFlight.putIfAbsent(key, mine) != null)
+            return;
+        try {
+            refresher.execute(() -> {
+                try {
+                    mine.complete(run(key, query));
+                } catch (NamingException|SQLException e) {
+                    mine.completeExceptionally(e);
+                    LOGGER.log(Level.FINE, "Background refresh failed", e);
+                } finally {
+                    inFlight.remove(key, mine);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            /* too many already waiting; a later request will ask again */
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(new OpenException());
+            dropped.increment();
+            return;
+        }
+        refreshes.increment();
+    }
+
+    private void failure() {
+        if (failures.incrementAndGet() >= THRESHOLD && openedAt == 0L) {
+            openedAt = System.currentTimeMillis();
+            LOGGER.log(Level.WARNING, "Database slow or failing, serving cached results");
+        }
+    }
+
+    private void success() {
+        failures.set(0);
+        if (openedAt != 0L) {
+            openedAt = 0L;
+            LOGGER.log(Level.INFO, "Database recovered");
+        }
+    }
+
+    /**
+     * Report what we've been doing.
+     * @return          JSON object of breaker state and counts.
+     */
+    public JsonObject toJson() {
+        int size = 0;
+        long chars = 0L;
+        synchronized (cache) {
+            size = cache.size();
+            chars = cachedChars;
+        }
+        long opened = openedAt;
+        JsonObjectBuilder b = Json.createObjectBuilder()
+            .add("open", opened != 0L)
+            .add("failures", failures.get())
+            .add("cached", size)
+            .add("cached_chars", chars)
+            .add("fresh", fresh.sum())
+            .add("shared", shared.sum())
+            .add("stale", stale.sum())
+            .add("rejected", rejected.sum())
+            .add("refreshes", refreshes.sum())
+            .add("dropped", dropped.sum());
+        if (opened != 0L)
+            b.add("open_ms", System.currentTimeMillis() - opened);
+        return b.build();
+    }
+}
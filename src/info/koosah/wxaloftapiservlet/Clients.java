@@ -0,0 +1,201 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.nio.charset.Charset;
+import java.sql.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of the clients and frequencies tables, so that
+ * ReceiveAcars need not query them for every message. Entries are
+ * loaded on demand and dropped when Coherence sees a change to the
+ * underlying rows, which may have been made on any node. A row read
+ * just before an invalidation is never cached after it: each map has a
+ * generation counter, bumped by every invalidation, and an entry whose
+ * read straddled a bump is discarded. Entries also expire after TTL, as
+ * a safety net.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Clients {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /* How long a cached entry is good for, in ms. */
+    private static final long TTL = 5L * 60L * 1000L;
+
+    private static final ConcurrentHashMap<String, Entry<Client>> byAuth = new ConcurrentHashMap<String, Entry<Client>>();
+    private static final ConcurrentHashMap<Long, Entry<Double>> frequencies = new ConcurrentHashMap<Long, Entry<Double>>();
+    private static final AtomicLong clientGeneration = new AtomicLong();
+    private static final AtomicLong frequencyGeneration = new AtomicLong();
+
+    /* A cached value and when it was read. */
+    private static class Entry<T> {
+        final T value;
+        final long loaded;
+
+        Entry(T value) {
+            this.value = value;
+            this.loaded = System.currentTimeMillis();
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - loaded <= TTL;
+        }
+    }
+
+    /**
+     * A row in the clients table.
+     */
+    public static class Client {
+        private final int id;
+        private final String name;
+        private final boolean logAll;
+        private final boolean recordWx;
+        private final Double rate;
+        private final Integer burst;
+
+        public Client(int id, String name, boolean logAll, boolean recordWx, Double rate, Integer burst) {
+            this.id = id;
+            this.name = name;
+            this.logAll = logAll;
+            this.recordWx = recordWx;
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public boolean getLogAll() { return logAll; }
+        public boolean getRecordWx() { return recordWx; }
+        public Double getRate() { return rate; }
+        public Integer getBurst() { return burst; }
+    }
+
+    /**
+     * Look up a client by hashed authenticator.
+     * @param conn      Connection to use if the client is not cached.
+     * @param hashed    Hashed authenticator, cf. AuthTool.hash.
+     * @return          Client, or null if unknown. Unknown authenticators
+     *                  are not cached, so they cannot be used to fill
+     *                  up memory.
+     */
+    public static Client byAuth(Connection conn, byte[] hashed) throws SQLException {
+        String key = new String(hashed, ASCII);
+        Entry<Client> cached = byAuth.get(key);
+        if (cached != null && cached.isFresh())
+            return cached.value;
+        long generation = clientGeneration.get();
+        Client ret = null;
+        try (PreparedStatement stmt = conn.prepareStatement("select id, name, log_all, record_wx, rate, burst from clients where auth = ?")) {
+            stmt.setBytes(1, hashed);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next())
+                return null;
+            ret = client(rs, 1);
+        }
+        remember(key, ret, generation);
+        return ret;
+    }
+
+    /**
+     * Look up a client by hashed authenticator, without going to the
+     * database.
+     * @param hashed    Hashed authenticator, cf. AuthTool.hash.
+     * @return          Client, or null if not cached (which does not mean
+     *                  it is unknown).
+     */
+    public static Client cached(byte[] hashed) {
+        Entry<Client> cached = byAuth.get(new String(hashed, ASCII));
+        return cached != null && cached.isFresh() ? cached.value : null;
+    }
+
+    /**
+     * Load every client into the cache, e.g. while warming up, so that
+     * the first message from each doesn't have to wait for a query.
+     * @param conn      Connection to use.
+     * @return          The number of clients loaded.
+     */
+    public static int preload(Connection conn) throws SQLException {
+        long generation = clientGeneration.get();
+        int count = 0;
+        try (PreparedStatement stmt = conn.prepareStatement("select auth, id, name, log_all, record_wx, rate, burst from clients")) {
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                remember(new String(rs.getBytes(1), ASCII), client(rs, 2), generation);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /* Make a Client from a result set, starting at the given column. */
+    private static Client client(ResultSet rs, int col) throws SQLException {
+        double rate = rs.getDouble(col + 4);
+        boolean noRate = rs.wasNull();
+        int burst = rs.getInt(col + 5);
+        boolean noBurst = rs.wasNull();
+        return new Client(rs.getInt(col), rs.getString(col + 1), rs.getBoolean(col + 2),
+            rs.getBoolean(col + 3), noRate ? null : rate, noBurst ? null : burst);
+    }
+
+    /* Cache a client, unless it may have changed since it was read. */
+    private static void remember(String key, Client client, long generation) {
+        Entry<Client> entry = new Entry<Client>(client);
+        byAuth.put(key, entry);
+        if (clientGeneration.get() != generation)
+            byAuth.remove(key, entry);
+    }
+
+    /**
+     * Map a client's channel number to a frequency.
+     * @param conn      Connection to use if the channel is not cached.
+     * @param client    Client ID.
+     * @param channel   Channel number.
+     * @return          Frequency in MHz, or null if unknown.
+     */
+    public static Double frequency(Connection conn, int client, int channel) throws SQLException {
+        long key = ((long) client << 32) | (channel & 0xffffffffL);
+        Entry<Double> cached = frequencies.get(key);
+        if (cached != null && cached.isFresh())
+            return cached.value;
+        long generation = frequencyGeneration.get();
+        Double ret = null;
+        try (PreparedStatement stmt = conn.prepareStatement("select frequency from frequencies where client_id = ? and channel = ?")) {
+            stmt.setInt(1, client);
+            stmt.setInt(2, channel);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next())
+                return null;
+            ret = rs.getDouble(1);
+        }
+        Entry<Double> entry = new Entry<Double>(ret);
+        frequencies.put(key, entry);
+        if (frequencyGeneration.get() != generation)
+            frequencies.remove(key, entry);
+        return ret;
+    }
+
+    /**
+     * Forget a client (and with it, any authenticator it had).
+     * @param id        Client ID, or null to forget all clients.
+     */
+    public static void invalidateClient(Integer id) {
+        clientGeneration.incrementAndGet();
+        if (id == null)
+            byAuth.clear();
+        else
+            byAuth.values().removeIf(e -> e.value.getId() == id);
+    }
+
+    /**
+     * Forget a client's frequencies.
+     * @param id        Client ID, or null to forget all frequencies.
+     */
+    public static void invalidateFrequencies(Integer id) {
+        frequencyGeneration.incrementAndGet();
+        if (id == null)
+            frequencies.clear();
+        else
+            frequencies.keySet().removeIf(k -> (int) (k >> 32) == id);
+    }
+}
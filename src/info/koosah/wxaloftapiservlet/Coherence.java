@@ -0,0 +1,143 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.sql.DataSource;
+
+/**
+ * Keeps the in-memory caches of the clients, frequencies and areas tables
+ * coherent across several nodes sharing one database. Triggers on those
+ * tables append to change_log, whatever made the change (AuthTool, an
+ * operator at the mysql&gt; prompt, or anything else); each node polls
+ * change_log and drops just the cache entries affected.
+ *
+ * Auto-increment IDs can commit out of order, so polling for IDs above
+ * the highest seen could miss an entry for good. Instead, each poll looks
+ * at everything changed in the last LOOKBACK (by the database's clock),
+ * and remembers which IDs in that window it has already acted on. Every
+ * so often, entries older than RETAIN are deleted.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Coherence implements ServletContextListener {
+    private static final Logger LOGGER = Logger.getLogger(Coherence.class.getCanonicalName());
+
+    /* How often to poll, in ms. */
+    private static final long INTERVAL = 2000L;
+
+    /* How far back each poll looks, in ms; comfortably longer than any
+       transaction that changes a cached table. */
+    private static final long LOOKBACK = 5L * 60L * 1000L;
+
+    /* How often to prune change_log, and how long to keep entries, in ms. */
+    private static final long PRUNE_INTERVAL = 60L * 60L * 1000L;
+    private static final long RETAIN = 24L * 60L * 60L * 1000L;
+
+    private ScheduledExecutorService poller;
+    private Timestamp lastPoll = null;
+    private final Map<Long, Timestamp> seen = new HashMap<Long, Timestamp>();
+    private long lastPrune = 0L;
+
+    /**
+     * Start polling when the webapp starts.
+     */
+    public void contextInitialized(ServletContextEvent sce) {
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "coherence");
+            t.setDaemon(true);
+            return t;
+        });
+        poller.scheduleWithFixedDelay(this::poll, 0L, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop polling when the webapp stops.
+     */
+    public void contextDestroyed(ServletContextEvent sce) {
+        poller.shutdownNow();
+    }
+
+    private void poll() {
+        try (Connection conn = getConnection()) {
+            Timestamp now = null;
+            try (Statement stmt = conn.createStatement()) {
+                ResultSet rs = stmt.executeQuery("select now()");
+                rs.next();
+                now = rs.getTimestamp(1);
+            }
+
+            /* on the first poll, just note what's there; the caches are
+               empty so there is nothing to invalidate */
+            boolean first = lastPoll == null;
+            Timestamp since = new Timestamp((first ? now : lastPoll).getTime() - LOOKBACK);
+            try (PreparedStatement stmt = conn.prepareStatement("select id, tbl, row_id, changed from change_log where changed >= ? order by id")) {
+                stmt.setTimestamp(1, since);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    if (seen.containsKey(id))
+                        continue;
+                    seen.put(id, rs.getTimestamp(4));
+                    if (first)
+                        continue;
+                    String table = rs.getString(2);
+                    int r = rs.getInt(3);
+                    Integer rowId = rs.wasNull() ? null : r;
+                    invalidate(table, rowId);
+                }
+            }
+            lastPoll = now;
+
+            /* forget what the next poll won't see again */
+            long horizon = now.getTime() - LOOKBACK;
+            seen.values().removeIf(t -> t.getTime() < horizon);
+
+            if (System.currentTimeMillis() - lastPrune > PRUNE_INTERVAL) {
+                lastPrune = System.currentTimeMillis();
+                prune(conn, now);
+            }
+        } catch (NamingException|SQLException e) {
+            /* we can't tell what changed, so assume everything did */
+            LOGGER.log(Level.WARNING, "Unable to poll change_log", e);
+            invalidate(null, null);
+        }
+    }
+
+    /* Delete old change_log entries. Every node does this, which is
+       harmless. */
+    private void prune(Connection conn, Timestamp now) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("delete from change_log where changed < ?")) {
+            stmt.setTimestamp(1, new Timestamp(now.getTime() - RETAIN));
+            int n = stmt.executeUpdate();
+            if (n > 0)
+                LOGGER.log(Level.INFO, String.format("Pruned %d change_log entr%s", n, n==1? "y": "ies"));
+        }
+    }
+
+    private void invalidate(String table, Integer rowId) {
+        LOGGER.log(Level.FINE, String.format("Invalidating %s %s", table, rowId));
+        if (table == null || "clients".equals(table))
+            Clients.invalidateClient(rowId);
+        if (table == null || "frequencies".equals(table))
+            Clients.invalidateFrequencies(rowId);
+        if (table == null || "areas".equals(table))
+            Areas.invalidate();
+    }
+
+    private Connection getConnection() throws NamingException, SQLException {
+        Context c = (Context) (new InitialContext()).lookup("java:comp/env");
+        DataSource d = (DataSource) c.lookup("jdbc/WxDB");
+        return d.getConnection();
+    }
+}
@@ -0,0 +1,146 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.*;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Bulk historical export of observations over arbitrary time ranges, as
+ * CSV or newline-delimited JSON. Unlike ObsData, at most one chunk is
+ * buffered: rows are sent in chunks (with chunked transfer encoding, and
+ * gzip if the client accepts it). Each chunk is read into memory and the
+ * database connection released before it is written, so a slow client
+ * never holds a connection or a server-side result set. If the database
+ * fails part way through, the connection is aborted rather than the
+ * response ended normally, so a truncated export is never mistaken for a
+ * complete one. Parameters: from= and to= (ISO-8601 instants, to=
+ * defaults to now), area= (optional), format= (csv or ndjson) and after=
+ * (resume after this observation ID).
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Export extends HttpServlet {
+    private static final long serialVersionUID = -1316009447285862040L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Logger LOGGER = Logger.getLogger(Export.class.getCanonicalName());
+
+    /**
+     * Process a GET request by streaming out observations.
+     * @param req     HttpServletRequest
+     * @param resp    HttpServletResponse
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        /* parse parameters */
+        Exporter.Format format = Exporter.parseFormat(req.getParameter("format"));
+        if (format == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown format)");
+            return;
+        }
+        String rawFrom = req.getParameter("from");
+        if (rawFrom == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing from= parameter)");
+            return;
+        }
+        long from = -1L, to = -1L, after = 0L;
+        try {
+            from = Instant.parse(rawFrom).toEpochMilli();
+            String rawTo = req.getParameter("to");
+            to = rawTo == null ? System.currentTimeMillis() : Instant.parse(rawTo).toEpochMilli();
+            String rawAfter = req.getParameter("after");
+            if (rawAfter != null)
+                after = Long.parseLong(rawAfter);
+        } catch (DateTimeParseException|NumberFormatException e) {
+            LOGGER.log(Level.SEVERE, "Invalid export parameter", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid time or ID)");
+            return;
+        }
+        Integer areaId = null;
+        String rawArea = req.getParameter("area");
+        if (rawArea != null) {
+            try {
+                Areas.Area area = Areas.find(rawArea);
+                if (area == null) {
+                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown area)");
+                    return;
+                }
+                areaId = area.getId();
+            } catch (NamingException|SQLException e) {
+                LOGGER.log(Level.SEVERE, "Unable to resolve area", e);
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to resolve area)");
+                return;
+            }
+        }
+
+        /* get the first chunk before committing to a status, so that a
+           busy or broken database still gets a proper error */
+        Exporter exporter = new Exporter(format, areaId, from, to, after);
+        CharArrayWriter buffer = new CharArrayWriter(1 << 20);
+        int n;
+        try (Connection conn = getConnection()) {
+            n = exporter.chunk(conn, buffer);
+        } catch (ReadRouter.BusyException e) {
+            resp.setHeader("Retry-After", "30");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (database busy)");
+            return;
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to export", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to export)");
+            return;
+        }
+
+        /* set up response */
+        resp.setStatus(200);
+        resp.setContentType(format == Exporter.Format.CSV ? "text/csv; charset=UTF-8" : "application/x-ndjson; charset=UTF-8");
+        OutputStream os = resp.getOutputStream();
+        String accept = req.getHeader("Accept-Encoding");
+        resp.setHeader("Vary", "Accept-Encoding");
+        if (accept != null && accept.contains("gzip")) {
+            resp.setHeader("Content-Encoding", "gzip");
+            os = new GZIPOutputStream(os, 65536, true);
+        }
+
+        /* send it out, one chunk (and one connection) at a time */
+        long total = 0;
+        Writer out = new BufferedWriter(new OutputStreamWriter(os, UTF8), 65536);
+        try {
+            exporter.header(out);
+            while (true) {
+                buffer.writeTo(out);
+                total += n;
+                out.flush();
+                if (n < Exporter.CHUNK)
+                    break;
+                buffer.reset();
+                try (Connection conn = getConnection()) {
+                    n = exporter.chunk(conn, buffer);
+                }
+            }
+        } catch (NamingException|SQLException e) {
+            /* Too late for an error status, and closing normally would end
+               the gzip stream and the chunked body properly, making a
+               truncated export look complete. So leave the writer open and
+               throw; with the response committed, the container then
+               aborts the connection, which the client sees as an
+               incomplete transfer and can resume from the last ID it
+               got. */
+            LOGGER.log(Level.SEVERE, String.format("Export failed after ID %d", exporter.getLastId()), e);
+            throw new ServletException(String.format("Export aborted after ID %d", exporter.getLastId()), e);
+        }
+        out.close();
+        LOGGER.log(Level.INFO, String.format("Exported %d observation%s", total, total==1? "": "s"));
+    }
+
+    private Connection getConnection() throws NamingException, SQLException {
+        return ReadRouter.getConnection();
+    }
+}
@@ -0,0 +1,154 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.*;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author n5jrn@me.com
+ * @since 2026-10-18
+ *
+ * A command-line tool for bulk export of observations, as CSV or
+ * newline-delimited JSON, to standard output.
+ */
+public class ExportTool
+{
+    private static final String MYNAME = "ExportTool";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static String DCONTEXT = "META-INF" + File.separator + "context.xml";
+
+    /**
+     * Entry point for the command-line utility. Syntax:
+     * [-c context] [-a area] [-f csv|ndjson] [-r after-id] [-z] from [to]
+     * From and to are ISO-8601 instants; to defaults to now. -z gzips
+     * the output. Use -r with the last ID written to resume an
+     * interrupted export.
+     */
+    public static void main(String[] args)
+    {
+        String context = DCONTEXT;
+        String area = null;
+        Exporter.Format format = Exporter.Format.CSV;
+        long after = 0L;
+        boolean gzip = false;
+        String rawFrom = null, rawTo = null;
+
+        /* parse arguments */
+        for (int i=0; i<args.length; i++) {
+            String arg = args[i];
+            if ("-z".equals(arg)) {
+                gzip = true;
+                continue;
+            }
+            if (arg.startsWith("-") && arg.length() == 2) {
+                if (i + 1 >= args.length) {
+                    System.err.format("%s: missing value for %s%n", MYNAME, arg);
+                    System.exit(2);
+                }
+                String val = args[++i];
+                switch (arg.charAt(1)) {
+                case 'c':
+                    context = val;
+                    break;
+                case 'a':
+                    area = val;
+                    break;
+                case 'f':
+                    format = Exporter.parseFormat(val);
+                    if (format == null) {
+                        System.err.format("%s: unknown format %s%n", MYNAME, val);
+                        System.exit(2);
+                    }
+                    break;
+                case 'r':
+                    try {
+                        after = Long.parseLong(val);
+                    } catch (NumberFormatException e) {
+                        System.err.format("%s: invalid number: %s%n", MYNAME, val);
+                        System.exit(2);
+                    }
+                    break;
+                default:
+                    System.err.format("%s: unknown option %s%n", MYNAME, arg);
+                    System.exit(2);
+                }
+            } else if (rawFrom == null) {
+                rawFrom = arg;
+            } else if (rawTo == null) {
+                rawTo = arg;
+            } else {
+                System.err.format("%s: too many arguments%n", MYNAME);
+                System.exit(2);
+            }
+        }
+        if (rawFrom == null) {
+            System.err.format("%s: expecting starting time%n", MYNAME);
+            System.exit(2);
+        }
+        long from = -1L, to = -1L;
+        try {
+            from = Instant.parse(rawFrom).toEpochMilli();
+            to = rawTo == null ? System.currentTimeMillis() : Instant.parse(rawTo).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            System.err.format("%s: invalid time: %s%n", MYNAME, e.getParsedString());
+            System.exit(2);
+        }
+
+        /* get connection */
+        Connection conn = null;
+        try {
+            conn = DBUtils.getConnection(context);
+            if (conn == null) {
+                System.err.format("%s: unable to get connection%n", MYNAME);
+                System.exit(1);
+            }
+        } catch (SQLException e) {
+            System.err.format("%s: %s%n", MYNAME, e.getMessage());
+            System.err.format("%s: unable to get connection%n", MYNAME);
+            System.exit(1);
+        }
+
+        /* resolve area */
+        Integer areaId = null;
+        if (area != null) {
+            try {
+                for (Areas.Area a : Areas.load(conn)) {
+                    if (area.equals(a.getName()) || area.equals(Integer.toString(a.getId())))
+                        areaId = a.getId();
+                }
+            } catch (SQLException e) {
+                System.err.format("%s: %s%n", MYNAME, e.getMessage());
+                System.exit(1);
+            }
+            if (areaId == null) {
+                System.err.format("%s: unknown area %s%n", MYNAME, area);
+                System.exit(1);
+            }
+        }
+
+        /* export */
+        Exporter exporter = new Exporter(format, areaId, from, to, after);
+        long total = 0;
+        try {
+            OutputStream os = new FileOutputStream(FileDescriptor.out);
+            if (gzip)
+                os = new GZIPOutputStream(os, 65536);
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(os, UTF8), 65536)) {
+                exporter.header(out);
+                int n;
+                do {
+                    n = exporter.chunk(conn, out);
+                    total += n;
+                } while (n == Exporter.CHUNK);
+            }
+        } catch (IOException|SQLException e) {
+            System.err.format("%s: %s%n", MYNAME, e.getMessage());
+            System.err.format("%s: export failed; resume with -r %d%n", MYNAME, exporter.getLastId());
+            System.exit(1);
+        }
+        System.err.format("%d observation%s exported, last ID %d%n", total, total==1? "": "s", exporter.getLastId());
+    }
+}
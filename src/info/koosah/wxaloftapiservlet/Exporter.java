@@ -0,0 +1,150 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.*;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Writes observations out in bulk as CSV or newline-delimited JSON. Rows
+ * are read in ID order, in chunks, and streamed from the server rather
+ * than buffered, so memory use does not depend on how many rows there
+ * are. Since every row carries its ID, an interrupted export can be
+ * resumed from the last ID received.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Exporter {
+    /**
+     * Output formats.
+     */
+    public enum Format { CSV, NDJSON }
+
+    /** Rows per chunk. Each chunk is one query. */
+    public static final int CHUNK = 10000;
+
+    private static final String CSV_HEADER = "id,received,observed,frequency,altitude,wind_speed,wind_dir,temperature,source,latitude,longitude";
+
+    private final Format format;
+    private final Integer areaId;
+    private final long from;
+    private final long to;
+    private final SimpleDateFormat dFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    private long lastId;
+
+    /**
+     * Constructor.
+     * @param format    Output format.
+     * @param areaId    Area to export, null for all observations.
+     * @param from      Earliest observation time (inclusive), ms.
+     * @param to        Latest observation time (exclusive), ms.
+     * @param afterId   Only export observations with greater IDs than this.
+     */
+    public Exporter(Format format, Integer areaId, long from, long to, long afterId) {
+        this.format = format;
+        this.areaId = areaId;
+        this.from = from;
+        this.to = to;
+        this.lastId = afterId;
+        dFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    /**
+     * The ID of the last observation written (or the starting point, if
+     * none have been written yet).
+     */
+    public long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Write whatever must precede the rows.
+     */
+    public void header(Writer out) throws IOException {
+        if (format == Format.CSV) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Write the next chunk of rows.
+     * @param conn      Database connection to use.
+     * @param out       Where to write.
+     * @return          Number of rows written; less than CHUNK means done.
+     */
+    public int chunk(Connection conn, Writer out) throws SQLException, IOException {
+        String sql = areaId == null ?
+            "select " + Observation.COLUMNS + " from observations where observations.id > ? and observations.observed >= ? and observations.observed < ? order by observations.id limit ?" :
+            "select " + Observation.COLUMNS + " from observations join obs_area on observations.id = obs_area.observation_id where observations.id > ? and observations.observed >= ? and observations.observed < ? and obs_area.area_id = ? order by observations.id limit ?";
+        int n = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            /* this is what makes Connector/J stream rows instead of
+               reading the whole result into memory */
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            int i = 1;
+            stmt.setLong(i++, lastId);
+            stmt.setTimestamp(i++, new Timestamp(from));
+            stmt.setTimestamp(i++, new Timestamp(to));
+            if (areaId != null)
+                stmt.setInt(i++, areaId);
+            stmt.setInt(i++, CHUNK);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Observation o = Observation.fromResultSet(rs);
+                    if (format == Format.CSV)
+                        writeCsv(o, out);
+                    else
+                        writeJson(o, out);
+                    lastId = o.getId();
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    private void writeCsv(Observation o, Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(o.getId()).append(',');
+        sb.append(dFormat.format(new java.util.Date(o.getReceived()))).append(',');
+        sb.append(dFormat.format(new java.util.Date(o.getObserved()))).append(',');
+        sb.append(o.getFrequency()).append(',');
+        sb.append(o.getAltitude()).append(',');
+        if (o.getWindSpeed() != null) sb.append(o.getWindSpeed());
+        sb.append(',');
+        if (o.getWindDirection() != null) sb.append(o.getWindDirection());
+        sb.append(',');
+        if (o.getTemperature() != null) sb.append(o.getTemperature());
+        sb.append(',');
+        if (o.getSource() != null) {
+            String s = o.getSource().trim();
+            if (s.indexOf(',') >= 0 || s.indexOf('"') >= 0)
+                sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+            else
+                sb.append(s);
+        }
+        sb.append(',');
+        sb.append(o.getLatitude()).append(',');
+        sb.append(o.getLongitude()).append('\n');
+        out.write(sb.toString());
+    }
+
+    private void writeJson(Observation o, Writer out) throws IOException {
+        out.write(o.toJson(dFormat).add("id", o.getId()).build().toString());
+        out.write('\n');
+    }
+
+    /**
+     * Parse a format name.
+     * @return          Format, or null if unknown.
+     */
+    public static Format parseFormat(String name) {
+        if (name == null || "csv".equalsIgnoreCase(name))
+            return Format.CSV;
+        if ("ndjson".equalsIgnoreCase(name) || "json".equalsIgnoreCase(name))
+            return Format.NDJSON;
+        return null;
+    }
+}
@@ -0,0 +1,46 @@
+package info.koosah.wxaloftapiservlet;
+
+/**
+ * @author n5jrn@me.com
+ * @since 2026-10-18
+ *
+ * Geographic routines. These must agree with the kilometers() function
+ * in the database, since membership in an area is decided by both.
+ */
+public class Geo
+{
+    /** Earth radius in km, as used by kilometers() in the database. */
+    public static final double RADIUS = 6378.0;
+
+    /** Length of one degree of latitude, in km. */
+    public static final double KM_PER_DEGREE = RADIUS * Math.PI / 180.0;
+
+    /**
+     * Distance in km between two lat/long points. A direct translation
+     * of the SQL kilometers() function.
+     */
+    public static double kilometers(double lat1, double lon1, double lat2, double lon2)
+    {
+        lat1 = Math.toRadians(lat1);
+        lon1 = Math.toRadians(lon1);
+        lat2 = Math.toRadians(lat2);
+        lon2 = Math.toRadians(lon2);
+        double r2 = RADIUS * RADIUS;
+        double x = 2.0*(1.0-Math.cos(lat1)*Math.cos(lat2)*Math.cos(lon1-lon2)-Math.sin(lat1)*Math.sin(lat2));
+        double chord = RADIUS * Math.sqrt(Math.max(0.0, x));
+        double c2 = chord * chord;
+        return RADIUS * Math.asin(Math.min(1.0, chord/(2.0*r2)*Math.sqrt(4.0*r2-c2)));
+    }
+
+    /**
+     * How many degrees of longitude span a given distance at a given
+     * latitude. Used to turn a radius into a bounding box.
+     */
+    public static double lonDegrees(double km, double lat)
+    {
+        double c = Math.cos(Math.toRadians(lat));
+        if (c < 1e-6)
+            return 360.0;
+        return Math.min(360.0, km / (KM_PER_DEGREE * c));
+    }
+}
@@ -0,0 +1,134 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.TimeZone;
+import javax.json.*;
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the winds-aloft grid for an area. The grid is maintained in
+ * memory as observations arrive (see ObsFeed, which seeds it at startup
+ * and then tails the observations table), so requests never read the
+ * observations table themselves.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class GridData extends HttpServlet {
+    private static final long serialVersionUID = 6021772436139505893L;
+
+    private static final SimpleDateFormat LOCAL_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    private static final SimpleDateFormat UTC_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    static {
+        UTC_TIME.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+    private static final Logger LOGGER = Logger.getLogger(GridData.class.getCanonicalName());
+
+    /**
+     * Seed the grid from the database, so that it is not empty after a
+     * restart.
+     */
+    public void init() throws ServletException {
+        ObsFeed.seed();
+    }
+
+    /**
+     * Process a GET request by returning the grid for an area.
+     * @param req     HttpServletRequest
+     * @param resp    HttpServletResponse
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        /* get the mandatory area */
+        String rawArea = req.getParameter("area");
+        if (rawArea == null) {
+            LOGGER.log(Level.SEVERE, "Missing area= parameter");
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing area= parameter)");
+            return;
+        }
+        Areas.Area area = null;
+        try {
+            area = Areas.find(rawArea);
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to resolve area", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to resolve area)");
+            return;
+        }
+        if (area == null) {
+            LOGGER.log(Level.SEVERE, "Unknown area " + rawArea);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown area)");
+            return;
+        }
+
+        /* get the optional altitude, which selects a single band */
+        Integer band = null;
+        String rawAltitude = req.getParameter("altitude");
+        if (rawAltitude != null) {
+            try {
+                band = WindGrid.band(Integer.parseInt(rawAltitude));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.SEVERE, "Invalid altitude", e);
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid altitude)");
+                return;
+            }
+        }
+
+        /* determine time zone to use */
+        SimpleDateFormat dFormat = null;
+        String zone = req.getParameter("zone");
+        if (zone == null || "local".equals(zone)) {
+            dFormat = (SimpleDateFormat) LOCAL_TIME.clone();
+            dFormat.setTimeZone(TimeZone.getTimeZone(area.getTimezone()));
+        } else if ("UTC".equals(zone) || "GMT".equals(zone)) {
+            dFormat = (SimpleDateFormat) UTC_TIME.clone();
+        } else {
+            dFormat = (SimpleDateFormat) LOCAL_TIME.clone();
+            dFormat.setTimeZone(TimeZone.getTimeZone(zone));
+        }
+
+        /* build the response */
+        JsonArrayBuilder jaBuilder = Json.createArrayBuilder();
+        for (WindGrid.Snapshot s : WindGrid.getInstance().get(area.getId(), band)) {
+            JsonObjectBuilder joBuilder = Json.createObjectBuilder()
+                .add("latitude", s.latitude)
+                .add("longitude", s.longitude)
+                .add("altitude", s.altitude)
+                .add("count", s.count)
+                .add("latest", dFormat.format(new java.util.Date(s.latest)));
+            if (s.windSpeed == null) {
+                joBuilder.addNull("wind_speed");
+                joBuilder.addNull("wind_dir");
+            } else {
+                joBuilder.add("wind_speed", Math.round(s.windSpeed));
+                joBuilder.add("wind_dir", s.windDirection);
+            }
+            if (s.temperature == null) {
+                joBuilder.addNull("temperature");
+                joBuilder.addNull("temperature_var");
+            } else {
+                joBuilder.add("temperature", Math.round(s.temperature * 10.0) / 10.0);
+                joBuilder.add("temperature_var", Math.round(s.temperatureVariance * 100.0) / 100.0);
+            }
+            jaBuilder.add(joBuilder);
+        }
+        JsonObject result = Json.createObjectBuilder()
+            .add("area", area.getName())
+            .add("cell_degrees", WindGrid.CELL_DEGREES)
+            .add("band_feet", WindGrid.BAND_FEET)
+            .add("cells", jaBuilder)
+            .build();
+
+        /* send back JSON here */
+        resp.setStatus(200);
+        resp.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.println(result.toString());
+        out.flush();
+    }
+}
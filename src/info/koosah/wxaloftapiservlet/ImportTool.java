@@ -0,0 +1,544 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.*;
+
+import info.koosah.acarsutils.wxdecoder.WxDecoder;
+import info.koosah.acarsutils.AcarsMessage;
+import info.koosah.acarsutils.AcarsObservation;
+
+/**
+ * @author n5jrn@me.com
+ * @since 2026-10-18
+ *
+ * A command-line tool for bulk import of archived receiver captures that
+ * never went through ReceiveAcars. Each input line is either a JSON object
+ * in the ReceiveAcars payload format or a raw ACARS message. Files are
+ * memory-mapped and split into batches of lines, which a pool of workers
+ * decodes and assigns to areas; a single writer loads the results with
+ * multi-row inserts, one transaction per batch.
+ */
+public class ImportTool
+{
+    private static final String MYNAME = "ImportTool";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static String DCONTEXT = "META-INF" + File.separator + "context.xml";
+
+    /* Anything less than this value is a channel number, not a frequency;
+       cf. ReceiveAcars. */
+    private static final int MIN_FREQUENCY = 100;
+
+    /* defaults and limits */
+    private static final int DBATCH = 2000;
+    private static final int INSERT_ROWS = 500;
+    private static final long WINDOW = 256L * 1024L * 1024L;
+    private static final long REPORT = 10000L;
+
+    /* shared, read-only once loaded */
+    private static List<Areas.Area> areas;
+    private static Map<String, Integer> clientsByAuth = new HashMap<String, Integer>();
+    private static Set<Integer> recordWx = new HashSet<Integer>();
+    private static Map<Long, Double> frequencies = new HashMap<Long, Double>();
+    private static int defaultClient = -1;
+    private static long defaultTime = -1L;
+    private static double defaultFrequency = 0.0;
+
+    /* statistics */
+    private static final AtomicLong lines = new AtomicLong();
+    private static final AtomicLong messages = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong observations = new AtomicLong();
+    private static final AtomicLong duplicates = new AtomicLong();
+
+    /* end of input marker */
+    private static final Batch EOF = new Batch(null);
+
+    /**
+     * Entry point for the command-line utility. Syntax:
+     * [-c context] [-p threads] [-b batch] [-k client] [-t time] [-f frequency] [-D] file ...
+     * JSON lines identify their client by authenticator unless -k (a
+     * client name or ID) is given. Raw ACARS lines need -k, and are taken
+     * as received at -t (an ISO-8601 instant) or failing that the file's
+     * modification time, on -f (a frequency in MHz) or failing that an
+     * unknown frequency, recorded as 0. -D drops the obs_area index during
+     * the import and rebuilds it afterwards.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        String context = DCONTEXT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batch = DBATCH;
+        String client = null;
+        String rawTime = null;
+        boolean deferIndex = false;
+        List<String> files = new ArrayList<String>();
+
+        /* parse arguments */
+        try {
+            for (int i=0; i<args.length; i++) {
+                String arg = args[i];
+                if ("-D".equals(arg)) {
+                    deferIndex = true;
+                } else if (arg.startsWith("-") && arg.length() == 2) {
+                    if (i + 1 >= args.length)
+                        usage("missing value for " + arg);
+                    String val = args[++i];
+                    switch (arg.charAt(1)) {
+                    case 'c': context = val; break;
+                    case 'p': threads = Integer.parseInt(val); break;
+                    case 'b': batch = Integer.parseInt(val); break;
+                    case 'k': client = val; break;
+                    case 't': rawTime = val; break;
+                    case 'f': defaultFrequency = Double.parseDouble(val); break;
+                    default: usage("unknown option " + arg); break;
+                    }
+                } else {
+                    files.add(arg);
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage("invalid number: " + e.getMessage());
+        }
+        if (files.isEmpty())
+            usage("expecting file names");
+        if (threads < 1 || batch < 1)
+            usage("threads and batch size must be positive");
+        if (defaultFrequency != 0.0 && !(defaultFrequency >= MIN_FREQUENCY && defaultFrequency < Double.POSITIVE_INFINITY))
+            usage("frequency must be in MHz");
+        if (rawTime != null) {
+            try {
+                defaultTime = Instant.parse(rawTime).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                usage("invalid time: " + rawTime);
+            }
+        }
+
+        /* get connection */
+        Connection conn = DBUtils.getConnection(context);
+        if (conn == null) {
+            System.err.format("%s: unable to get connection%n", MYNAME);
+            System.exit(1);
+        }
+
+        /* the tables we need are small, so read them all up front */
+        areas = Areas.load(conn);
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("select id, name, auth, record_wx from clients");
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                clientsByAuth.put(new String(rs.getBytes(3), UTF8), id);
+                if (rs.getBoolean(4))
+                    recordWx.add(id);
+                if (client != null && (client.equals(rs.getString(2)) || client.equals(Integer.toString(id))))
+                    defaultClient = id;
+            }
+            rs = stmt.executeQuery("select client_id, channel, frequency from frequencies");
+            while (rs.next())
+                frequencies.put(channelKey(rs.getInt(1), rs.getInt(2)), rs.getDouble(3));
+        }
+        if (client != null && defaultClient < 0) {
+            System.err.format("%s: unknown client %s%n", MYNAME, client);
+            System.exit(1);
+        }
+
+        /* start the pipeline */
+        BlockingQueue<Batch> work = new ArrayBlockingQueue<Batch>(threads * 4);
+        BlockingQueue<Batch> done = new ArrayBlockingQueue<Batch>(threads * 4);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i=0; i<threads; i++) {
+            Thread t = new Thread(() -> decode(work, done), "decoder-" + i);
+            t.start();
+            workers.add(t);
+        }
+        Writer writer = new Writer(conn, done);
+        Thread wt = new Thread(writer, "writer");
+
+        if (deferIndex) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("alter table obs_area drop index obs_ndx");
+            }
+        }
+        long started = System.nanoTime();
+        try {
+            wt.start();
+
+            /* read input */
+            for (String name : files) {
+                try {
+                    read(name, batch, work);
+                } catch (IOException e) {
+                    System.err.format("%s: %s: %s%n", MYNAME, name, e.getMessage());
+                }
+            }
+            for (int i=0; i<threads; i++)
+                work.put(EOF);
+            for (Thread t : workers)
+                t.join();
+            done.put(EOF);
+            wt.join();
+        } finally {
+            /* put the index back, however we got here */
+            if (deferIndex) {
+                System.out.println("Rebuilding obs_area index...");
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate(Schema.obsAreaIndex(conn));
+                }
+            }
+        }
+        report(started);
+        if (writer.failure != null) {
+            System.err.format("%s: %s%n", MYNAME, writer.failure.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void usage(String message)
+    {
+        System.err.format("%s: %s%n", MYNAME, message);
+        System.err.format("usage: %s [-c context] [-p threads] [-b batch] [-k client] [-t time] [-f frequency] [-D] file ...%n", MYNAME);
+        System.exit(2);
+    }
+
+    private static void report(long started)
+    {
+        double elapsed = (System.nanoTime() - started) / 1e9;
+        long m = messages.get();
+        System.out.format("%d lines, %d messages (%.0f/s, %.0f/h), %d rejected, %d observations, %d duplicates%n",
+            lines.get(), m, m / elapsed, m / elapsed * 3600.0, rejected.get(), observations.get(), duplicates.get());
+    }
+
+    private static long channelKey(int client, int channel)
+    {
+        return ((long) client << 32) | (channel & 0xffffffffL);
+    }
+
+    /* A batch of input lines, and later of the results of decoding them. */
+    private static class Batch {
+        final List<String> lines;
+        final long time;
+        final List<Observation> obs = new ArrayList<Observation>();
+        final List<int[]> areaIds = new ArrayList<int[]>();
+
+        Batch(List<String> lines) {
+            this(lines, -1L);
+        }
+
+        Batch(List<String> lines, long time) {
+            this.lines = lines;
+            this.time = time;
+        }
+    }
+
+    /* Memory-map a file a window at a time and cut it into lines. */
+    private static void read(String name, int batch, BlockingQueue<Batch> work) throws IOException, InterruptedException
+    {
+        File f = new File(name);
+        long time = defaultTime >= 0L ? defaultTime : f.lastModified();
+        try (FileChannel ch = FileChannel.open(Paths.get(name), StandardOpenOption.READ)) {
+            long size = ch.size();
+            long pos = 0L;
+            List<String> pending = new ArrayList<String>(batch);
+            byte[] buf = new byte[8192];
+            while (pos < size) {
+                long len = Math.min(WINDOW, size - pos);
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                int start = 0;
+                int limit = (int) len;
+                boolean last = pos + len >= size;
+                for (int i=0; i<limit; i++) {
+                    if (map.get(i) != '\n' && !(last && i == limit - 1))
+                        continue;
+                    int end = map.get(i) == '\n' ? i : i + 1;
+                    int n = end - start;
+                    if (n > buf.length)
+                        buf = new byte[n * 2];
+                    map.position(start);
+                    map.get(buf, 0, n);
+                    /* don't trim(); raw messages end in a control character */
+                    if (n > 0 && buf[n - 1] == '\r')
+                        n--;
+                    String line = new String(buf, 0, n, UTF8);
+                    if (!line.trim().isEmpty()) {
+                        pending.add(line);
+                        if (pending.size() == batch) {
+                            work.put(new Batch(pending, time));
+                            pending = new ArrayList<String>(batch);
+                        }
+                    }
+                    start = i + 1;
+                }
+                if (start == 0 && !last)
+                    throw new IOException("line too long");
+                /* start the next window at the first incomplete line */
+                pos += last ? len : start;
+            }
+            if (!pending.isEmpty())
+                work.put(new Batch(pending, time));
+        }
+    }
+
+    /* Worker: decode lines into observations. */
+    private static void decode(BlockingQueue<Batch> work, BlockingQueue<Batch> done)
+    {
+        SimpleDateFormat jsonTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXX");
+        jsonTime.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            while (true) {
+                Batch b = work.take();
+                if (b == EOF)
+                    return;
+                for (String line : b.lines) {
+                    try {
+                        decodeLine(line, b, jsonTime);
+                    } catch (RuntimeException e) {
+                        /* a decoder choking on one message mustn't lose the batch */
+                        System.err.format("%s: %s%n", MYNAME, e);
+                        rejected.incrementAndGet();
+                    }
+                }
+                lines.addAndGet(b.lines.size());
+                done.put(b);
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+
+    private static void decodeLine(String line, Batch b, SimpleDateFormat jsonTime)
+    {
+        String message = null;
+        long time = b.time;
+        int clientId = defaultClient;
+        double channel = defaultFrequency;
+        boolean raw = line.charAt(0) != '{';
+        if (!raw) {
+            try (JsonReader reader = Json.createReader(new StringReader(line))) {
+                JsonObject obj = reader.readObject();
+                message = obj.getString("message");
+                time = jsonTime.parse(obj.getString("time")).getTime();
+                channel = obj.getJsonNumber("channel").doubleValue();
+                if (clientId < 0) {
+                    Integer c = clientsByAuth.get(new String(AuthTool.hash(obj.getString("auth")), UTF8));
+                    clientId = c == null ? -1 : c;
+                }
+            } catch (JsonException|IllegalStateException|NullPointerException|ClassCastException|ParseException e) {
+                rejected.incrementAndGet();
+                return;
+            }
+        } else {
+            message = line;
+        }
+        if (clientId < 0) {
+            rejected.incrementAndGet();
+            return;
+        }
+
+        /* map channel number to frequency, if needed; cf. ReceiveAcars,
+           which rejects unknown channels. Raw lines carry no channel, so
+           they get -f as-is. */
+        double frequency = channel;
+        if (!raw && channel < MIN_FREQUENCY) {
+            Double f = frequencies.get(channelKey(clientId, (int) channel));
+            if (f == null) {
+                rejected.incrementAndGet();
+                return;
+            }
+            frequency = f;
+        }
+
+        /* parse and decode, cf. ReceiveAcars.recordMessage */
+        AcarsMessage parsed = new AcarsMessage(message);
+        if (!parsed.parse()) {
+            rejected.incrementAndGet();
+            return;
+        }
+        messages.incrementAndGet();
+        if (!recordWx.contains(clientId))
+            return;
+        String flightId = parsed.getFlightId();
+        if (flightId == null)
+            return;
+        WxDecoder decoder = null;
+        try {
+            decoder = WxDecoder.forName(flightId);
+        } catch (IllegalArgumentException|WxDecoder.UnknownAirlineException e) {
+            return;
+        }
+        java.util.Date received = new java.util.Date(time);
+        Iterable<AcarsObservation> decoded = decoder.decode(parsed, received);
+        if (decoded == null)
+            return;
+        for (AcarsObservation obs : decoded) {
+            if (obs.getObserved() == null || obs.getAltitude() == null || obs.getLatitude() == null || obs.getLongitude() == null)
+                continue;
+            Observation o = new Observation(0L, received, obs, frequency, clientId, parsed.getRegistration());
+            List<Areas.Area> in = Areas.containing(areas, o.getLatitude(), o.getLongitude());
+            int[] ids = new int[in.size()];
+            for (int i=0; i<ids.length; i++)
+                ids[i] = in.get(i).getId();
+            b.obs.add(o);
+            b.areaIds.add(ids);
+        }
+    }
+
+    /* Writer: load decoded observations into the database. */
+    private static class Writer implements Runnable {
+        private final Connection conn;
+        private final BlockingQueue<Batch> done;
+        volatile Exception failure = null;
+
+        Writer(Connection conn, BlockingQueue<Batch> done) {
+            this.conn = conn;
+            this.done = done;
+        }
+
+        public void run() {
+            long started = System.nanoTime();
+            long nextReport = REPORT;
+            try {
+                conn.setAutoCommit(false);
+                while (true) {
+                    Batch b = done.take();
+                    if (b == EOF)
+                        return;
+                    long n = 0L;
+                    for (int i=0; i<b.obs.size(); i+=INSERT_ROWS)
+                        n += insertOrSplit(b.obs.subList(i, Math.min(b.obs.size(), i + INSERT_ROWS)),
+                            b.areaIds.subList(i, Math.min(b.obs.size(), i + INSERT_ROWS)));
+                    conn.commit();
+                    observations.addAndGet(n);
+                    duplicates.addAndGet(b.obs.size() - n);
+                    if (lines.get() >= nextReport) {
+                        report(started);
+                        nextReport = lines.get() + REPORT * 10;
+                    }
+                }
+            } catch (SQLException e) {
+                failure = e;
+                /* keep draining so the workers don't block forever */
+                try {
+                    while (done.take() != EOF)
+                        ;
+                } catch (InterruptedException e2) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+
+        /* Insert rows all at once. If any is a duplicate (possible if the
+           observations table has been given a unique key), the whole
+           statement fails, so back out and do them one at a time, skipping
+           the duplicates as ReceiveAcars does. Returns rows inserted. */
+        private int insertOrSplit(List<Observation> obs, List<int[]> areaIds) throws SQLException {
+            Savepoint sp = conn.setSavepoint();
+            try {
+                insert(obs, areaIds);
+                return obs.size();
+            } catch (SQLIntegrityConstraintViolationException e) {
+                conn.rollback(sp);
+            }
+            int ret = 0;
+            for (int i=0; i<obs.size(); i++) {
+                sp = conn.setSavepoint();
+                try {
+                    insert(obs.subList(i, i + 1), areaIds.subList(i, i + 1));
+                    ret++;
+                } catch (SQLIntegrityConstraintViolationException e) {
+                    conn.rollback(sp);
+                }
+            }
+            return ret;
+        }
+
+        private void insert(List<Observation> obs, List<int[]> areaIds) throws SQLException {
+            boolean compact = Schema.isCompact(conn);
+            StringBuilder sb = new StringBuilder("insert into " + Schema.observationsTable(conn) + " (" + Schema.insertColumns(conn) + ") values ");
+            for (int i=0; i<obs.size(); i++)
+                sb.append(i == 0 ? "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            long[] ids = new long[obs.size()];
+            try (PreparedStatement stmt = conn.prepareStatement(sb.toString(), Statement.RETURN_GENERATED_KEYS)) {
+                int n = 1;
+                for (Observation o : obs) {
+                    stmt.setTimestamp(n++, new Timestamp(o.getReceived()));
+                    stmt.setTimestamp(n++, new Timestamp(o.getObserved()));
+                    if (compact)
+                        stmt.setInt(n++, Schema.frequency(o.getFrequency()));
+                    else
+                        stmt.setDouble(n++, o.getFrequency());
+                    stmt.setInt(n++, o.getClientId());
+                    stmt.setInt(n++, o.getAltitude());
+                    setObject(stmt, n++, o.getWindSpeed(), Types.SMALLINT);
+                    setObject(stmt, n++, o.getWindDirection(), Types.SMALLINT);
+                    setObject(stmt, n++, o.getTemperature(), Types.FLOAT);
+                    if (compact) {
+                        setObject(stmt, n++, Schema.registration(conn, o.getSource()), Types.INTEGER);
+                        stmt.setInt(n++, Schema.degrees(o.getLatitude()));
+                        stmt.setInt(n++, Schema.degrees(o.getLongitude()));
+                    } else {
+                        stmt.setString(n++, o.getSource());
+                        stmt.setDouble(n++, o.getLatitude());
+                        stmt.setDouble(n++, o.getLongitude());
+                    }
+                }
+                stmt.executeUpdate();
+                ResultSet rs = stmt.getGeneratedKeys();
+                for (int i=0; i<ids.length; i++) {
+                    if (!rs.next())
+                        throw new SQLException("missing generated keys");
+                    ids[i] = rs.getLong(1);
+                }
+            }
+
+            /* now their areas */
+            sb = new StringBuilder("insert ignore into obs_area (observation_id, area_id) values ");
+            int rows = 0;
+            for (int[] a : areaIds)
+                for (int j=0; j<a.length; j++)
+                    sb.append(rows++ == 0 ? "(?, ?)" : ", (?, ?)");
+            if (rows == 0)
+                return;
+            try (PreparedStatement stmt = conn.prepareStatement(sb.toString())) {
+                int n = 1;
+                for (int i=0; i<ids.length; i++) {
+                    for (int areaId : areaIds.get(i)) {
+                        stmt.setLong(n++, ids[i]);
+                        stmt.setInt(n++, areaId);
+                    }
+                }
+                stmt.executeUpdate();
+            }
+        }
+
+        private void setObject(PreparedStatement stmt, int ndx, Object obj, int type) throws SQLException {
+            if (obj == null)
+                stmt.setNull(ndx, type);
+            else
+                stmt.setObject(ndx, obj, JDBCType.valueOf(type));
+        }
+    }
+}
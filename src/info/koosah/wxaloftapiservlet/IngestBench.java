@@ -0,0 +1,115 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import javax.json.*;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+
+/**
+ * @author n5jrn@me.com
+ * @since 2026-10-18
+ *
+ * A command-line microbenchmark of the two ways of reading a message
+ * POSTed to ReceiveAcars: into a tree with JsonReader, as we used to, and
+ * field by field with IngestRecord, as we do now. Reports heap allocated
+ * and CPU time per message for each, as measured by the JVM's per-thread
+ * counters (allocation counting needs a HotSpot JVM). Run it with the
+ * bench target in build.xml.
+ */
+public class IngestBench
+{
+    private static final String MYNAME = "IngestBench";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final JsonParserFactory PARSERS = Json.createParserFactory(null);
+
+    /* defaults */
+    private static final int DITERATIONS = 200000;
+    private static final int WARMUPS = 3;
+
+    /* a typical message */
+    private static final byte[] BODY = Json.createObjectBuilder()
+        .add("auth", "0123456789abcdef0123456789abcdef")
+        .add("time", "2026-10-18T12:00:00.000-0700")
+        .add("channel", 2)
+        .add("message", "2.N123AA H1 DFB 1234 /WX01 N47.5 W122.3 FL350 M52 270 045 ....................................................")
+        .build().toString().getBytes(UTF8);
+
+    /**
+     * Entry point for the command-line utility. Syntax:
+     * [iterations]
+     * Each way is warmed up for WARMUPS rounds of that many iterations,
+     * then measured over one more.
+     */
+    public static void main(String[] args)
+    {
+        int iterations = DITERATIONS;
+        if (args.length > 1) {
+            System.err.format("%s: expecting at most one argument%n", MYNAME);
+            System.exit(2);
+        }
+        if (args.length == 1) {
+            try {
+                iterations = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                System.err.format("%s: invalid number: %s%n", MYNAME, args[0]);
+                System.exit(2);
+            }
+            if (iterations <= 0) {
+                System.err.format("%s: number of iterations must be positive%n", MYNAME);
+                System.exit(2);
+            }
+        }
+
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean hotspot = mx instanceof com.sun.management.ThreadMXBean ?
+            (com.sun.management.ThreadMXBean) mx : null;
+        long tid = Thread.currentThread().getId();
+
+        /* warm up both, so the JIT has done its worst */
+        Object sink = null;
+        for (int w=0; w<WARMUPS; w++) {
+            for (int i=0; i<iterations; i++) {
+                sink = tree();
+                sink = pull();
+            }
+        }
+
+        /* then measure each */
+        for (boolean isTree : new boolean[] { true, false }) {
+            long a0 = hotspot == null ? 0L : hotspot.getThreadAllocatedBytes(tid);
+            long c0 = mx.getCurrentThreadCpuTime();
+            for (int i=0; i<iterations; i++)
+                sink = isTree ? tree() : pull();
+            long c1 = mx.getCurrentThreadCpuTime();
+            long a1 = hotspot == null ? 0L : hotspot.getThreadAllocatedBytes(tid);
+            if (hotspot == null)
+                System.out.format("%s: %.0f ns/op%n", isTree ? "tree" : "pull",
+                    (c1 - c0) / (double) iterations);
+            else
+                System.out.format("%s: %d bytes/op, %.0f ns/op%n", isTree ? "tree" : "pull",
+                    (a1 - a0) / iterations, (c1 - c0) / (double) iterations);
+        }
+        if (sink == null)
+            System.err.format("%s: last message did not parse%n", MYNAME);
+    }
+
+    /* Read a message the old way. */
+    private static Object tree()
+    {
+        try (JsonReader reader = Json.createReader(new InputStreamReader(new ByteArrayInputStream(BODY), UTF8))) {
+            JsonObject o = reader.readObject();
+            return o.getString("auth") + o.getString("time") + o.getJsonNumber("channel") + o.getString("message");
+        }
+    }
+
+    /* And the new way. */
+    private static Object pull()
+    {
+        try (JsonParser parser = PARSERS.createParser(new ByteArrayInputStream(BODY), UTF8)) {
+            return IngestRecord.parse(parser);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.math.BigDecimal;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+
+/**
+ * One message as sent to ReceiveAcars in JSON, pulled field by field out
+ * of a JsonParser rather than read into a tree. Unknown fields, nested
+ * values and known fields of the wrong type are all skipped, so a sender
+ * adding fields of its own never has its messages refused; a required
+ * field that is missing or of the wrong type is left null for the
+ * caller to complain about. (See IngestBench for why this beats reading
+ * a tree.)
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class IngestRecord {
+    private String auth = null;
+    private String time = null;
+    private BigDecimal channel = null;
+    private String message = null;
+    private Long seq = null;
+
+    public String getAuth() { return auth; }
+    public String getTime() { return time; }
+    public BigDecimal getChannel() { return channel; }
+    public String getMessage() { return message; }
+    public Long getSeq() { return seq; }
+
+    /**
+     * Read one JSON object from a parser.
+     * @param parser    Parser, positioned before the START_OBJECT event.
+     * @return          The record, or null if the next value is not a
+     *                  JSON object.
+     */
+    public static IngestRecord parse(JsonParser parser) {
+        try {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT)
+                return null;
+            IngestRecord ret = new IngestRecord();
+            String key = null;
+            while (parser.hasNext()) {
+                switch (parser.next()) {
+                case KEY_NAME:
+                    key = parser.getString();
+                    break;
+                case VALUE_STRING:
+                    if ("auth".equals(key))
+                        ret.auth = parser.getString();
+                    else if ("time".equals(key))
+                        ret.time = parser.getString();
+                    else if ("message".equals(key))
+                        ret.message = parser.getString();
+                    break;
+                case VALUE_NUMBER:
+                    if ("channel".equals(key)) {
+                        ret.channel = parser.getBigDecimal();
+                    } else if ("seq".equals(key) && parser.isIntegralNumber()) {
+                        ret.seq = parser.getLong();
+                    }
+                    break;
+                case START_OBJECT:
+                case START_ARRAY:
+                    if (!skip(parser))
+                        return null;
+                    break;
+                case END_OBJECT:
+                    return ret;
+                default:
+                    break;
+                }
+            }
+            return null;
+        } catch (JsonException e) {
+            return null;
+        }
+    }
+
+    /* Skip the rest of a nested object or array, whose start has just
+       been read. Returns false if the input ends first. */
+    private static boolean skip(JsonParser parser) {
+        int depth = 1;
+        while (parser.hasNext()) {
+            switch (parser.next()) {
+            case START_OBJECT:
+            case START_ARRAY:
+                depth++;
+                break;
+            case END_OBJECT:
+            case END_ARRAY:
+                if (--depth == 0)
+                    return true;
+                break;
+            default:
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,193 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.*;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Interpolated wind and temperature at a point: lat=, lon= and either
+ * altitude= (feet) or fl= (flight level). The k (k=, default 8) nearest
+ * recent observations are found in the in-memory ObsIndex, "nearest"
+ * counting distance, altitude difference and age together, and are
+ * combined by inverse-distance weighting. Never touches the database.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Interpolate extends HttpServlet {
+    private static final long serialVersionUID = 5118302717644829135L;
+
+    private static final Logger LOGGER = Logger.getLogger(Interpolate.class.getCanonicalName());
+
+    /* what counts as one unit of distance in each dimension */
+    private static final double KM_UNIT = 50.0;
+    private static final double FEET_UNIT = 1000.0;
+    private static final double MS_UNIT = 30.0 * 60.0 * 1000.0;
+
+    /* how far we look; the search radius doubles until we have enough */
+    private static final double FIRST_RADIUS = 50.0;
+    private static final double MAX_RADIUS = 400.0;
+    private static final int ALT_SPAN = 4000;
+    private static final long MAX_AGE = 2L * 60L * 60L * 1000L;
+
+    private static final int DEFAULT_K = 8;
+    private static final int MAX_K = 32;
+
+    /**
+     * Seed the index from the database, so that it is not empty after a
+     * restart.
+     */
+    public void init() throws ServletException {
+        ObsFeed.seed();
+    }
+
+    /**
+     * Process a GET request by returning interpolated conditions.
+     * @param req     HttpServletRequest
+     * @param resp    HttpServletResponse
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        double lat, lon;
+        int altitude, k;
+        try {
+            String rawLat = req.getParameter("lat");
+            String rawLon = req.getParameter("lon");
+            String rawAlt = req.getParameter("altitude");
+            String rawFl = req.getParameter("fl");
+            if (rawLat == null || rawLon == null || (rawAlt == null && rawFl == null)) {
+                LOGGER.log(Level.SEVERE, "Missing point");
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (need lat=, lon= and altitude= or fl=)");
+                return;
+            }
+            lat = Double.parseDouble(rawLat);
+            lon = Double.parseDouble(rawLon);
+            altitude = rawAlt != null ? Integer.parseInt(rawAlt) : Integer.parseInt(rawFl) * 100;
+            String rawK = req.getParameter("k");
+            k = rawK == null ? DEFAULT_K : Integer.parseInt(rawK);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.SEVERE, "Invalid number", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid number)");
+            return;
+        }
+        if (lat < -90.0 || lat > 90.0 || lon < -180.0 || lon > 180.0 || k < 1 || k > MAX_K) {
+            LOGGER.log(Level.SEVERE, "Parameter out of range");
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (parameter out of range)");
+            return;
+        }
+
+        /* send back JSON here */
+        JsonObject result = interpolate(lat, lon, altitude, k, System.currentTimeMillis()).build();
+        resp.setStatus(200);
+        resp.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.println(result.toString());
+        out.flush();
+    }
+
+    /**
+     * Interpolate conditions at a point.
+     * @param lat       Latitude, degrees.
+     * @param lon       Longitude, degrees.
+     * @param altitude  Altitude, feet.
+     * @param k         How many observations to use.
+     * @param now       Current time, ms.
+     * @return          JSON object; values are null if no observations
+     *                  are close enough.
+     */
+    public static JsonObjectBuilder interpolate(double lat, double lon, int altitude, int k, long now) {
+        /* find the k nearest, widening the search until we have them */
+        PriorityQueue<Neighbor> nearest = null;
+        for (double radius = FIRST_RADIUS; radius <= MAX_RADIUS; radius *= 2.0) {
+            final PriorityQueue<Neighbor> found = new PriorityQueue<Neighbor>(k + 1);
+            ObsIndex.getInstance().query(lat, lon, radius, now - MAX_AGE, now,
+              altitude - ALT_SPAN, altitude + ALT_SPAN, obs -> {
+                if (!obs.hasWind() && obs.getTemperature() == null)
+                    return;
+                double km = Geo.kilometers(lat, lon, obs.getLatitude(), obs.getLongitude());
+                double dk = km / KM_UNIT;
+                double da = (obs.getAltitude() - altitude) / FEET_UNIT;
+                double dt = (now - obs.getObserved()) / MS_UNIT;
+                found.add(new Neighbor(obs, km, Math.sqrt(dk*dk + da*da + dt*dt)));
+                if (found.size() > k)
+                    found.poll();
+            });
+            nearest = found;
+            if (found.size() >= k)
+                break;
+        }
+
+        /* weight them */
+        double wSum = 0.0, uSum = 0.0, vSum = 0.0, windW = 0.0;
+        double tSum = 0.0, tempW = 0.0, dSum = 0.0, ageSum = 0.0;
+        double nearestKm = Double.NaN;
+        int n = nearest.size();
+        for (Neighbor nb : nearest) {
+            double w = 1.0 / (nb.distance * nb.distance + 0.01);
+            Observation obs = nb.obs;
+            if (obs.hasWind()) {
+                uSum += w * obs.getWindU();
+                vSum += w * obs.getWindV();
+                windW += w;
+            }
+            if (obs.getTemperature() != null) {
+                tSum += w * obs.getTemperature();
+                tempW += w;
+            }
+            wSum += w;
+            dSum += w * nb.distance;
+            ageSum += now - obs.getObserved();
+            if (Double.isNaN(nearestKm) || nb.km < nearestKm)
+                nearestKm = nb.km;
+        }
+
+        /* quality falls off with missing neighbors and with distance */
+        double quality = n == 0 ? 0.0 : ((double) n / k) / (1.0 + dSum / wSum);
+        JsonObjectBuilder ret = Json.createObjectBuilder()
+            .add("latitude", lat)
+            .add("longitude", lon)
+            .add("altitude", altitude);
+        if (windW > 0.0) {
+            double u = uSum / windW, v = vSum / windW;
+            ret.add("wind_speed", Math.round(Math.sqrt(u*u + v*v)))
+                .add("wind_dir", Observation.direction(u, v))
+                .add("wind_u", Math.round(u * 10.0) / 10.0)
+                .add("wind_v", Math.round(v * 10.0) / 10.0);
+        } else {
+            ret.addNull("wind_speed").addNull("wind_dir").addNull("wind_u").addNull("wind_v");
+        }
+        if (tempW > 0.0)
+            ret.add("temperature", Math.round(tSum / tempW * 10.0) / 10.0);
+        else
+            ret.addNull("temperature");
+        JsonObjectBuilder q = Json.createObjectBuilder()
+            .add("score", Math.round(quality * 100.0) / 100.0)
+            .add("observations", n);
+        if (n > 0)
+            q.add("nearest_km", Math.round(nearestKm))
+                .add("mean_age_s", Math.round(ageSum / n / 1000.0));
+        return ret.add("quality", q);
+    }
+
+    /* A candidate observation, ordered farthest first so that the heap
+       can drop the farthest when it has too many. */
+    private static class Neighbor implements Comparable<Neighbor> {
+        final Observation obs;
+        final double km;
+        final double distance;
+
+        Neighbor(Observation obs, double km, double distance) {
+            this.obs = obs;
+            this.km = km;
+            this.distance = distance;
+        }
+
+        public int compareTo(Neighbor other) {
+            return Double.compare(other.distance, distance);
+        }
+    }
+}
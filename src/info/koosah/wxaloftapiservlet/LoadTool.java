@@ -0,0 +1,386 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.json.*;
+
+import info.koosah.acarsutils.FakeAcarsMessage;
+
+/**
+ * @author n5jrn@me.com
+ * @since 2026-10-18
+ *
+ * A command-line load generator. Posts ACARS messages to ReceiveAcars on
+ * behalf of a number of simulated receivers while polling ObsData, then
+ * reports latency percentiles, throughput and errors for both. Messages
+ * are either replayed from a corpus of captured ReceiveAcars payloads
+ * (one JSON object per line) or synthesized.
+ */
+public class LoadTool
+{
+    private static final String MYNAME = "LoadTool";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final SimpleDateFormat JSON_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXX");
+    static {
+        JSON_TIME.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    /* ACARS framing characters */
+    private static final char STX = '\u0002';
+    private static final char ETX = '\u0003';
+
+    /* defaults */
+    private static final String DURL = "http://localhost:8080/WxAloftApi";
+    private static final double DRATE = 50.0;
+    private static final int DTHREADS = 8;
+    private static final int DSECONDS = 60;
+    private static final long DPOLL = 5000L;
+
+    /**
+     * Entry point for the command-line utility. Syntax:
+     * [-u url] [-r rate] [-t threads] [-d seconds] [-n receivers]
+     * [-f corpus] [-p pollers] [-i poll-interval-ms] [-a area] authfile
+     * The authfile contains one receiver authenticator per line; each one
+     * is a simulated receiver. Rate is in messages per second across all
+     * receivers; use -r 0 to only poll.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        String base = DURL;
+        double rate = DRATE;
+        int threads = DTHREADS;
+        int seconds = DSECONDS;
+        int receivers = -1;
+        String corpus = null;
+        int pollers = 0;
+        long pollInterval = DPOLL;
+        String area = null;
+        String authFile = null;
+
+        /* parse arguments */
+        try {
+            for (int i=0; i<args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("-") || arg.length() != 2) {
+                    if (authFile != null)
+                        usage("too many arguments");
+                    authFile = arg;
+                    continue;
+                }
+                if (i + 1 >= args.length)
+                    usage("missing value for " + arg);
+                String val = args[++i];
+                switch (arg.charAt(1)) {
+                case 'u': base = val; break;
+                case 'r': rate = Double.parseDouble(val); break;
+                case 't': threads = Integer.parseInt(val); break;
+                case 'd': seconds = Integer.parseInt(val); break;
+                case 'n': receivers = Integer.parseInt(val); break;
+                case 'f': corpus = val; break;
+                case 'p': pollers = Integer.parseInt(val); break;
+                case 'i': pollInterval = Long.parseLong(val); break;
+                case 'a': area = val; break;
+                default: usage("unknown option " + arg); break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage("invalid number: " + e.getMessage());
+        }
+        if (authFile == null)
+            usage("expecting authenticator file");
+        if (pollers > 0 && area == null)
+            usage("polling requires -a area");
+        if (threads < 1 || seconds < 1 || rate < 0.0)
+            usage("threads, duration and rate must be positive");
+
+        /* read authenticators (one per simulated receiver) */
+        List<String> auths = new ArrayList<String>();
+        for (String line : Files.readAllLines(Paths.get(authFile), ASCII)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#"))
+                auths.add(line);
+        }
+        if (receivers > 0 && receivers < auths.size())
+            auths = auths.subList(0, receivers);
+        if (auths.isEmpty()) {
+            System.err.format("%s: no authenticators in %s%n", MYNAME, authFile);
+            System.exit(1);
+        }
+
+        /* read corpus, if any */
+        List<JsonObject> payloads = new ArrayList<JsonObject>();
+        if (corpus != null) {
+            try (BufferedReader in = Files.newBufferedReader(Paths.get(corpus), UTF8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty())
+                        continue;
+                    try (JsonReader reader = Json.createReader(new StringReader(line))) {
+                        payloads.add(reader.readObject());
+                    } catch (JsonException|IllegalStateException e) {
+                        System.err.format("%s: skipping bad corpus line: %s%n", MYNAME, e.getMessage());
+                    }
+                }
+            }
+            if (payloads.isEmpty()) {
+                System.err.format("%s: no usable payloads in %s%n", MYNAME, corpus);
+                System.exit(1);
+            }
+        }
+
+        /* run the test */
+        final URL ingestUrl = new URL(base + "/ReceiveAcars");
+        final URL pollUrl = area == null ? null :
+            new URL(base + "/ObsData?zone=UTC&area=" + URLEncoder.encode(area, "UTF-8"));
+        final Stats ingest = new Stats();
+        final Stats poll = new Stats();
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+
+        /* pollers just loop until the deadline */
+        List<Thread> pollThreads = new ArrayList<Thread>();
+        final long interval = pollInterval;
+        for (int i=0; i<pollers; i++) {
+            Thread t = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    request(pollUrl, null, start, poll);
+                    long sleep = interval - (System.nanoTime() - start) / 1000000L;
+                    if (sleep > 0) {
+                        try {
+                            Thread.sleep(sleep);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "poller-" + i);
+            t.setDaemon(true);
+            t.start();
+            pollThreads.add(t);
+        }
+
+        /* ingest is an open model: requests are scheduled at fixed intervals
+           and latency is measured from the scheduled time, so a slow server
+           can't hide its slowness by making us send less */
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Random random = new Random();
+        if (rate > 0.0) {
+            long period = (long) (1000000000.0 / rate);
+            long next = System.nanoTime();
+            long n = 0;
+            while (next < deadline) {
+                long now = System.nanoTime();
+                if (next > now)
+                    TimeUnit.NANOSECONDS.sleep(next - now);
+                final long scheduled = next;
+                String auth = auths.get((int) (n % auths.size()));
+                final byte[] body = payloads.isEmpty() ?
+                    synthesize(auth, random) : replay(payloads.get((int) (n % payloads.size())), auth);
+                pool.execute(() -> request(ingestUrl, body, scheduled, ingest));
+                next += period;
+                n++;
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        for (Thread t : pollThreads)
+            t.join();
+
+        /* report */
+        System.out.format("%d receiver%s, %d thread%s, %d second%s%n",
+            auths.size(), auths.size()==1? "": "s", threads, threads==1? "": "s",
+            seconds, seconds==1? "": "s");
+        if (rate > 0.0)
+            ingest.report("ReceiveAcars", seconds);
+        if (pollers > 0)
+            poll.report("ObsData", seconds);
+        System.exit(0);
+    }
+
+    private static void usage(String message)
+    {
+        System.err.format("%s: %s%n", MYNAME, message);
+        System.err.format("usage: %s [-u url] [-r rate] [-t threads] [-d seconds] [-n receivers] [-f corpus] [-p pollers] [-i poll-interval-ms] [-a area] authfile%n", MYNAME);
+        System.exit(2);
+    }
+
+    /* Make one request, recording its outcome. Posts if body is non-null. */
+    private static void request(URL url, byte[] body, long scheduled, Stats stats)
+    {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) url.openConnection();
+            if (body != null) {
+                conn.setRequestMethod("POST");
+                conn.setDoOutput(true);
+                conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+                conn.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = conn.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            int status = conn.getResponseCode();
+            /* drain the body so the connection can be kept alive */
+            InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+            if (in != null) {
+                try (InputStream i = in) {
+                    byte[] buf = new byte[8192];
+                    while (i.read(buf) >= 0)
+                        ;
+                }
+            }
+            stats.record(System.nanoTime() - scheduled, status < 400 ? null : Integer.toString(status));
+        } catch (IOException e) {
+            stats.record(System.nanoTime() - scheduled, e.getClass().getSimpleName());
+            if (conn != null)
+                conn.disconnect();
+        }
+    }
+
+    /* Reuse a captured payload as if a given receiver had just sent it. */
+    private static byte[] replay(JsonObject captured, String auth)
+    {
+        JsonObjectBuilder b = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> e : captured.entrySet())
+            b.add(e.getKey(), e.getValue());
+        b.add("auth", auth);
+        synchronized (JSON_TIME) {
+            b.add("time", JSON_TIME.format(new java.util.Date()));
+        }
+        return b.build().toString().getBytes(UTF8);
+    }
+
+    /* Make up a plausible downlink from a random aircraft. */
+    private static byte[] synthesize(String auth, Random random)
+    {
+        FakeAcarsMessage msg = new FakeAcarsMessage()
+            .setMode('2')
+            .setRegistration(String.format(".N%03d%s", random.nextInt(1000), "AS"))
+            .setAcknowledge('\u0015')
+            .setLabel("H1")
+            .setBlockId((char) ('1' + random.nextInt(9)))
+            .setMessageId(String.format("M%02d%c", random.nextInt(100), (char) ('A' + random.nextInt(26))))
+            .setFlightId(String.format("AS%04d", random.nextInt(10000)))
+            .setMessage(String.format("#DFB/PIREP TEST %06d", random.nextInt(1000000)));
+        JsonObjectBuilder b = Json.createObjectBuilder()
+            .add("auth", auth)
+            .add("channel", 131.55)
+            .add("message", serialize(msg));
+        synchronized (JSON_TIME) {
+            b.add("time", JSON_TIME.format(new java.util.Date()));
+        }
+        return b.build().toString().getBytes(UTF8);
+    }
+
+    /**
+     * Turn a message back into the raw form AcarsMessage parses.
+     * @param msg       Message to serialize.
+     * @return          Raw ACARS message text.
+     */
+    public static String serialize(FakeAcarsMessage msg)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(msg.getMode());
+        sb.append(pad(msg.getRegistration(), 7));
+        sb.append(msg.getAcknowledge());
+        sb.append(pad(msg.getLabel(), 2));
+        sb.append(msg.getBlockId());
+        sb.append(STX);
+        sb.append(pad(msg.getMessageId(), 4));
+        sb.append(pad(msg.getFlightId(), 6));
+        if (msg.getMessage() != null)
+            sb.append(msg.getMessage());
+        sb.append(ETX);
+        return sb.toString();
+    }
+
+    private static String pad(String s, int len)
+    {
+        if (s == null)
+            s = "";
+        StringBuilder sb = new StringBuilder(s.length() > len ? s.substring(0, len) : s);
+        while (sb.length() < len)
+            sb.append('.');
+        return sb.toString();
+    }
+
+    /* Latency statistics. Latencies go into a log-linear histogram (32
+       sub-buckets per power of two, so about 3% resolution) of
+       microseconds, which is fixed-size and lock-free. */
+    private static class Stats {
+        private static final int SUB = 32;
+        private static final int SUB_BITS = 5;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+        private final AtomicLong max = new AtomicLong();
+        private final LongAdder total = new LongAdder();
+        private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+
+        void record(long nanos, String error) {
+            long micros = Math.max(0L, nanos / 1000L);
+            counts.incrementAndGet(bucket(micros));
+            max.accumulateAndGet(micros, Math::max);
+            total.increment();
+            if (error != null)
+                errors.computeIfAbsent(error, k -> new LongAdder()).increment();
+        }
+
+        private static int bucket(long v) {
+            if (v < SUB)
+                return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return exp * SUB + (int) (v >>> exp);
+        }
+
+        private static long lowest(int b) {
+            if (b < SUB)
+                return b;
+            int exp = b / SUB - 1;
+            return (long) (b % SUB + SUB) << exp;
+        }
+
+        long percentile(double p) {
+            long n = total.sum();
+            long want = (long) Math.ceil(n * p / 100.0);
+            long seen = 0;
+            for (int i=0; i<counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= want && seen > 0)
+                    return lowest(i);
+            }
+            return max.get();
+        }
+
+        void report(String name, int seconds) {
+            long n = total.sum();
+            long bad = 0;
+            for (LongAdder a : errors.values())
+                bad += a.sum();
+            System.out.format("%n%s: %d request%s, %.1f/s, %d error%s%n", name, n, n==1? "": "s",
+                (double) n / seconds, bad, bad==1? "": "s");
+            if (n == 0)
+                return;
+            System.out.format("  p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms%n",
+                percentile(50.0) / 1000.0, percentile(99.0) / 1000.0,
+                percentile(99.9) / 1000.0, max.get() / 1000.0);
+            for (Map.Entry<String, LongAdder> e : errors.entrySet())
+                System.out.format("  %s: %d%n", e.getKey(), e.getValue().sum());
+        }
+    }
+}
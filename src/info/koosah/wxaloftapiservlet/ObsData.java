@@ -6,18 +6,17 @@ import java.sql.*;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.TimeZone;
 import javax.json.*;
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.sql.DataSource;
 
 /**
  * A production-level servlet for retrieving observation data.
@@ -44,59 +43,38 @@ public class ObsData extends HttpServlet {
      * @param resp    HttpServletResponse
      */
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        try (Connection conn = getConnection()) {
-            doGetWithConnection(req, resp, conn);
-        } catch (NamingException|SQLException e) {
-            LOGGER.log(Level.SEVERE, "Unable to obtain database connection", e);
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to obtain DB connection)");
-            return;
-        }
-    }
-
-    private void doGetWithConnection(HttpServletRequest req, HttpServletResponse resp, Connection conn) throws IOException
-    {
-        /* get the mandatory area ID and terminal time zone name */
-        String area = req.getParameter("area");
-        if (area == null) {
+        /* get the mandatory area(s) and terminal time zone name; several
+           areas may be given, as repeated area= parameters or separated
+           by commas, in which case local time is that of the first */
+        String[] rawAreas = req.getParameterValues("area");
+        if (rawAreas == null) {
             LOGGER.log(Level.SEVERE, "Missing area= parameter");
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing area= parameter)");
             return;
         }
-        int areaId = -1;
+        List<Integer> areaIds = new ArrayList<Integer>();
         String tzName = null;
-        try {
-            areaId = Integer.parseInt(area);
-            try (PreparedStatement stmt = conn.prepareStatement("select timezone from areas where id = ?")) {
-                stmt.setInt(1, areaId);
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next()) {
-                    tzName = rs.getString(1);
-                } else {
-                    LOGGER.log(Level.SEVERE, "Unknown area ID " + areaId);
-                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown area ID)");
+        for (String rawArea : rawAreas) {
+            for (String area : rawArea.split(",")) {
+                Areas.Area a = null;
+                try {
+                    a = Areas.find(area.trim());
+                } catch (NamingException|SQLException e) {
+                    /* only if we have never been able to read the areas */
+                    LOGGER.log(Level.SEVERE, "Unable to resolve area", e);
+                    resp.setHeader("Retry-After", "30");
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (unable to resolve area)");
                     return;
                 }
-            } catch (SQLException e2) {
-                LOGGER.log(Level.SEVERE, "Unable to resolve area", e2);
-                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to resolve area)");
-                return;
-            }
-        } catch (NumberFormatException e) {
-            try (PreparedStatement stmt = conn.prepareStatement("select id, timezone from areas where name = ?")) {
-                stmt.setString(1, area);
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next()) {
-                    areaId = rs.getInt(1);
-                    tzName = rs.getString(2);
-                } else {
-                    LOGGER.log(Level.SEVERE, "Unknown area name " + area);
-                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown area name)");
+                if (a == null) {
+                    LOGGER.log(Level.SEVERE, "Unknown area " + area);
+                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown area)");
                     return;
                 }
-            } catch (SQLException e2) {
-                LOGGER.log(Level.SEVERE, "Unable to resolve area", e2);
-                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to resolve area)");
-                return;
+                if (!areaIds.contains(a.getId()))
+                    areaIds.add(a.getId());
+                if (tzName == null)
+                    tzName = a.getTimezone();
             }
         }
 
@@ -107,7 +85,7 @@ public class ObsData extends HttpServlet {
             dFormat = (SimpleDateFormat) LOCAL_TIME.clone();
             dFormat.setTimeZone(TimeZone.getTimeZone(tzName));
         } else if ("UTC".equals(zone) || "GMT".equals(zone)) {
-            dFormat = UTC_TIME;
+            dFormat = (SimpleDateFormat) UTC_TIME.clone();
         } else {
             dFormat = (SimpleDateFormat) LOCAL_TIME.clone();
             dFormat.setTimeZone(TimeZone.getTimeZone(zone));
@@ -131,7 +109,72 @@ public class ObsData extends HttpServlet {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (excessive duration)");
             return;
         }
+
+        /* thin the observations if so requested */
+        final String resolution = req.getParameter("resolution");
+        final String band = req.getParameter("band");
+        final String maxPoints = req.getParameter("maxPoints");
+        Thinner thinner = null;
+        try {
+            thinner = Thinner.fromParameters(resolution, band, maxPoints);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.SEVERE, "Invalid thinning parameter", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid thinning parameter)");
+            return;
+        }
+
+        /* get observations, or the last ones we got if the database is
+           in trouble; requests meaning the same thing share a result,
+           however they are spelled */
+        final SimpleDateFormat f = dFormat;
+        final long m = millis;
+        StringBuilder key = new StringBuilder("ObsData?area=");
+        for (int i=0; i<areaIds.size(); i++) {
+            if (i > 0)
+                key.append(',');
+            key.append(areaIds.get(i));
+        }
+        key.append("&zone=").append(dFormat.getTimeZone().getID()).append("&since=").append(millis);
+        if (thinner != null)
+            key.append('&').append(thinner);
+        Breaker.Result result = null;
+        try {
+            result = Breaker.getInstance().fetch(key.toString(), () -> {
+                try (Connection conn = getConnection()) {
+                    return query(conn, areaIds, f, m, resolution, band, maxPoints);
+                }
+            });
+        } catch (Breaker.OpenException e) {
+            LOGGER.log(Level.SEVERE, "Database unavailable", e);
+            resp.setHeader("Retry-After", "30");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (database unavailable)");
+            return;
+        } catch (ReadRouter.BusyException e) {
+            resp.setHeader("Retry-After", "30");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (database busy)");
+            return;
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to get observations", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to get observations)");
+            return;
+        }
+
+        /* send back JSON here */
+        resp.setStatus(200);
+        resp.setContentType("application/json; charset=UTF-8");
+        result.addHeaders(resp);
+        PrintWriter out = resp.getWriter();
+        out.println(result.getBody());
+        out.flush();
+    }
+
+    /* Query the database for observations, returning them as JSON. */
+    private static String query(Connection conn, List<Integer> areaIds,
+      SimpleDateFormat dFormat, long millis, String resolution, String band,
+      String maxPoints) throws SQLException {
         long since = System.currentTimeMillis() - millis;
+        boolean multi = areaIds.size() > 1;
+        Thinner thinner = Thinner.fromParameters(resolution, band, maxPoints);
 
         /* set up some objects */
         JsonArrayBuilder jaBuilder = Json.createArrayBuilder();
@@ -139,27 +182,89 @@ public class ObsData extends HttpServlet {
             "frequency", "altitude", "wind_speed", "wind_dir", "temperature",
             "source", "latitude", "longitude" };
 
+        /* with the compact schema, read obs_compact directly rather than
+           through the decoding view, and decode as we go */
+        boolean compact = Schema.isCompact(conn);
+
         /* build select clause */
         StringBuilder sb = new StringBuilder();
         boolean doDelim = false;
         for (String field : FIELDS) {
             if (doDelim) sb.append(" ,");
-            sb.append("observations."); sb.append(field);
+            if (compact && "source".equals(field))
+                sb.append("registrations.reg");
+            else {
+                sb.append("observations."); sb.append(field);
+            }
             sb.append(" as "); sb.append(field);
             doDelim = true;
         }
         String clause = sb.toString();
+        String from = compact ?
+            " from obs_compact as observations join obs_area on observations.id = obs_area.observation_id left join registrations on registrations.id = observations.source_id" :
+            " from observations join obs_area on observations.id = obs_area.observation_id";
+
+        /* build where clause; with several areas, we want the rows for each
+           observation together so we can send it just once */
+        sb = new StringBuilder(" where observations.observed > ? and obs_area.area_id");
+        if (multi) {
+            sb.append(" in (");
+            for (int i=0; i<areaIds.size(); i++)
+                sb.append(i == 0 ? "?" : ", ?");
+            sb.append(")");
+            clause += ", observations.id as id, obs_area.area_id as area_id";
+        } else {
+            sb.append(" = ?");
+        }
+        if (thinner != null)
+            sb.append(multi ? " order by observations.observed desc, observations.id" : " order by observations.observed desc");
+        else if (multi)
+            sb.append(" order by observations.id");
+        String where = sb.toString();
 
         /* get observations */
-        try (PreparedStatement stmt = conn.prepareStatement("select " + clause + " from observations join obs_area on observations.id = obs_area.observation_id where observations.observed > ? and obs_area.area_id = ?")) {
+        try (PreparedStatement stmt = conn.prepareStatement("select " + clause + from + where)) {
             stmt.setTimestamp(1, new Timestamp(since));
-            stmt.setInt(2, areaId);
+            for (int i=0; i<areaIds.size(); i++)
+                stmt.setInt(i + 2, areaIds.get(i));
             ResultSet rs = stmt.executeQuery();
+            long prevId = -1L;
+            JsonObjectBuilder pending = null;
+            JsonArrayBuilder pendingAreas = null;
             while (rs.next()) {
+                /* further rows for the same observation just add areas */
+                if (multi) {
+                    long id = rs.getLong("id");
+                    if (id == prevId) {
+                        if (pendingAreas != null)
+                            pendingAreas.add(rs.getInt("area_id"));
+                        continue;
+                    }
+                    if (pending != null)
+                        jaBuilder.add(pending.add("areas", pendingAreas));
+                    prevId = id;
+                    pending = null;
+                    pendingAreas = null;
+                }
+                /* newest first, so we keep the newest in each cell */
+                if (thinner != null) {
+                    if (thinner.full())
+                        break;
+                    double lat = rs.getDouble("latitude"), lon = rs.getDouble("longitude");
+                    if (compact) {
+                        lat /= Schema.DEGREE_SCALE;
+                        lon /= Schema.DEGREE_SCALE;
+                    }
+                    if (!thinner.accept(lat, lon, rs.getInt("altitude")))
+                        continue;
+                }
                 JsonObjectBuilder joBuilder = Json.createObjectBuilder();
                 for (String field : FIELDS) {
                     Object v = rs.getObject(field);
-                    if (v instanceof Double)
+                    double scale = compact ? Schema.scale(field) : 0.0;
+                    if (scale != 0.0 && v instanceof Number)
+                        joBuilder.add(field, ((Number) v).longValue() / scale);
+                    else if (v instanceof Double)
                         joBuilder.add(field, (Double) v);
                     else if (v instanceof Float)
                         /* a hack to hide rounding errors */
@@ -176,31 +281,23 @@ public class ObsData extends HttpServlet {
                         joBuilder.add(field, (String) v);
                     else if (v == null)
                         joBuilder.addNull(field);
-                    else {
-                        LOGGER.log(Level.SEVERE, "Unexpected type in observations table");
-                        resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unexpected type)");
-                        return;
-                    }
+                    else
+                        throw new SQLException("Unexpected type in observations table");
+                }
+                if (multi) {
+                    pending = joBuilder;
+                    pendingAreas = Json.createArrayBuilder().add(rs.getInt("area_id"));
+                } else {
+                    jaBuilder.add(joBuilder);
                 }
-                jaBuilder.add(joBuilder);
             }
-        } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "Unable to get observations", e);
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to get observations)");
-            return;
+            if (pending != null)
+                jaBuilder.add(pending.add("areas", pendingAreas));
         }
-
-        /* send back JSON here */
-        resp.setStatus(200);
-        resp.setContentType("application/json; charset=UTF-8");
-        PrintWriter out = resp.getWriter();
-        out.println(jaBuilder.build().toString());
-        out.flush();
+        return jaBuilder.build().toString();
     }
 
-    private Connection getConnection() throws NamingException, SQLException {
-        Context c = (Context) (new InitialContext()).lookup("java:comp/env");
-        DataSource d = (DataSource) c.lookup("jdbc/WxDB");
-        return d.getConnection();
+    private static Connection getConnection() throws NamingException, SQLException {
+        return ReadRouter.getConnection();
     }
 }
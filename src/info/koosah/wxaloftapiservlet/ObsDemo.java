@@ -8,14 +8,11 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.TimeZone;
 import javax.json.*;
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.sql.DataSource;
 
 /**
  * This is a DEMO servlet that retrieves all the observations close enough
@@ -45,16 +42,54 @@ public class ObsDemo extends HttpServlet {
      * @param resp    HttpServletResponse
      */
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        try (Connection conn = getConnection()) {
-            doGetWithConnection(req, resp, conn);
+        /* thin the observations if so requested */
+        final String resolution = req.getParameter("resolution");
+        final String band = req.getParameter("band");
+        final String maxPoints = req.getParameter("maxPoints");
+        Thinner thinner = null;
+        try {
+            thinner = Thinner.fromParameters(resolution, band, maxPoints);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.SEVERE, "Invalid thinning parameter", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid thinning parameter)");
+            return;
+        }
+
+        /* get observations, or the last ones we got if the database is
+           in trouble */
+        Breaker.Result result = null;
+        try {
+            result = Breaker.getInstance().fetch(thinner == null ? "ObsDemo" : "ObsDemo?" + thinner, () -> {
+                try (Connection conn = getConnection()) {
+                    return query(conn, resolution, band, maxPoints);
+                }
+            });
+        } catch (Breaker.OpenException e) {
+            LOGGER.log(Level.SEVERE, "Database unavailable", e);
+            resp.setHeader("Retry-After", "30");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (database unavailable)");
+            return;
+        } catch (ReadRouter.BusyException e) {
+            resp.setHeader("Retry-After", "30");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (database busy)");
+            return;
         } catch (NamingException|SQLException e) {
-            LOGGER.log(Level.SEVERE, "Unable to obtain database connection", e);
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to obtain DB connection)");
+            LOGGER.log(Level.SEVERE, "Unable to get observations", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to get observations)");
             return;
         }
+
+        /* send back JSON here */
+        resp.setStatus(200);
+        resp.setContentType("application/json; charset=UTF-8");
+        result.addHeaders(resp);
+        PrintWriter out = resp.getWriter();
+        out.println(result.getBody());
+        out.flush();
     }
 
-    private void doGetWithConnection(HttpServletRequest req, HttpServletResponse resp, Connection conn) throws IOException
+    /* Query the database for observations, returning them as JSON. */
+    private static String query(Connection conn, String resolution, String band, String maxPoints) throws SQLException
     {
         /* get location ID and time zone for formatting */
         int areaId = -1;
@@ -66,15 +101,10 @@ public class ObsDemo extends HttpServlet {
                 areaId = rs.getInt(1);
                 dFormat.setTimeZone(TimeZone.getTimeZone(rs.getString(2)));
             } else {
-                LOGGER.log(Level.SEVERE, String.format("Location \"%s\" unknown!", LOCATION));
-                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (location unknown)");
-                return;
+                throw new SQLException(String.format("Location \"%s\" unknown!", LOCATION));
             }
-        } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "Unable to resolve location", e);
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to resolve location)");
-            return;
         }
+        Thinner thinner = Thinner.fromParameters(resolution, band, maxPoints);
 
         /* set up some objects */
         JsonArrayBuilder jaBuilder = Json.createArrayBuilder();
@@ -94,12 +124,19 @@ public class ObsDemo extends HttpServlet {
         String clause = sb.toString();
 
         /* get observations */
-        try (PreparedStatement stmt = conn.prepareStatement("select " + clause + " from observations join obs_area on observations.id = obs_area.observation_id where observations.observed > ? and obs_area.area_id = ?")) {
+        try (PreparedStatement stmt = conn.prepareStatement("select " + clause + " from observations join obs_area on observations.id = obs_area.observation_id where observations.observed > ? and obs_area.area_id = ?" + (thinner == null ? "" : " order by observations.observed desc"))) {
             Timestamp since = new Timestamp(DURATION + System.currentTimeMillis());
             stmt.setTimestamp(1, since);
             stmt.setInt(2, areaId);
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
+                /* newest first, so we keep the newest in each cell */
+                if (thinner != null) {
+                    if (thinner.full())
+                        break;
+                    if (!thinner.accept(rs.getDouble("latitude"), rs.getDouble("longitude"), rs.getInt("altitude")))
+                        continue;
+                }
                 JsonObjectBuilder joBuilder = Json.createObjectBuilder();
                 for (String field : FIELDS) {
                     Object v = rs.getObject(field);
@@ -120,31 +157,16 @@ public class ObsDemo extends HttpServlet {
                         joBuilder.add(field, (String) v);
                     else if (v == null)
                         joBuilder.addNull(field);
-                    else {
-                        LOGGER.log(Level.SEVERE, "Unexpected type in observations table");
-                        resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unexpected type)");
-                        return;
-                    }
+                    else
+                        throw new SQLException("Unexpected type in observations table");
                 }
                 jaBuilder.add(joBuilder);
             }
-        } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "Unable to get observations", e);
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to get observations)");
-            return;
         }
-
-        /* send back JSON here */
-        resp.setStatus(200);
-        resp.setContentType("application/json; charset=UTF-8");
-        PrintWriter out = resp.getWriter();
-        out.println(jaBuilder.build().toString());
-        out.flush();
+        return jaBuilder.build().toString();
     }
 
-    private Connection getConnection() throws NamingException, SQLException {
-        Context c = (Context) (new InitialContext()).lookup("java:comp/env");
-        DataSource d = (DataSource) c.lookup("jdbc/WxDB");
-        return d.getConnection();
+    private static Connection getConnection() throws NamingException, SQLException {
+        return ReadRouter.getConnection();
     }
 }
@@ -0,0 +1,289 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+/**
+ * Feeds observations to the in-memory structures (ObsIndex, WindGrid,
+ * Profiles, Summary) and the segment store. At startup they are seeded
+ * from the database so that they are not empty after a restart; from
+ * then on, the observations table is tailed for new IDs, much as
+ * Coherence tails change_log. So every node sees every observation,
+ * whichever node received it, and a few seconds late at most.
+ *
+ * Auto-increment IDs can commit out of order, so an ID skipped over by
+ * the tail may just belong to a transaction that has not committed yet.
+ * Such gaps are looked for again on each poll for GAP_WAIT. The same
+ * goes for IDs just below where seeding stopped that seeding didn't find.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class ObsFeed {
+    private static final Logger LOGGER = Logger.getLogger(ObsFeed.class.getCanonicalName());
+
+    /** How far back seeding goes; the longest any structure keeps data. */
+    public static final long SEED_WINDOW = Math.max(ObsIndex.RETENTION, WindGrid.WINDOW);
+
+    /* How often to retry seeding, in ms. */
+    private static final long RETRY = 5000L;
+
+    /* How often to look for new observations, in ms, and the most to
+       read at once. */
+    private static final long TAIL_INTERVAL = 1000L;
+    private static final int TAIL_LIMIT = 5000;
+
+    /* How long to keep looking for skipped IDs, in ms; comfortably longer
+       than any transaction that records observations. Bigger jumps than
+       MAX_GAP are not taken to be gaps, and at most MAX_GAPS are tracked. */
+    private static final long GAP_WAIT = 60000L;
+    private static final int MAX_GAP = 1000;
+    private static final int MAX_GAPS = 10000;
+
+    /* Most gaps to ask about in one query. */
+    private static final int IN_BATCH = 1000;
+
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+    private static volatile boolean seeded = false;
+
+    /* We have every observation made since completeSince (ms), as
+       recorded by caughtUp (ms); see isComplete. */
+    private static volatile long completeSince = Long.MAX_VALUE;
+    private static volatile long caughtUp = 0L;
+
+    /* Tail state; only touched by the tailer thread once it is going. */
+    private static long cursor = 0L;
+    private static final Map<Long, Long> gaps = new HashMap<Long, Long>();
+
+    private static final ScheduledExecutorService tailer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ObsFeed tail");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /* Add an observation to the in-memory structures. */
+    private static void distribute(Observation o) {
+        ObsIndex.getInstance().add(o);
+        Summary summary = Summary.getInstance();
+        summary.add(o);
+        List<Areas.Area> areas = null;
+        try {
+            areas = Areas.containing(Areas.get(), o.getLatitude(), o.getLongitude());
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to get areas", e);
+            return;
+        }
+        WindGrid grid = WindGrid.getInstance();
+        Profiles profiles = Profiles.getInstance();
+        for (Areas.Area a : areas) {
+            grid.add(a.getId(), o);
+            profiles.add(a.getId(), o);
+            summary.add(a.getId(), o);
+        }
+    }
+
+    /**
+     * Seed everything from the database, then start tailing it. Only the
+     * first call does anything. Seeding reads IDs up to the highest one
+     * that existed when it started, and tailing carries on from there,
+     * so none are seen twice; any of the last MAX_GAP IDs before that
+     * which seeding didn't find are treated as gaps. If the segment
+     * store survived a restart, as much as possible comes from there, and
+     * only the rest from the database. If the database is unavailable,
+     * seeding is retried in the background until it succeeds.
+     */
+    public static void seed() {
+        if (!started.compareAndSet(false, true))
+            return;
+        if (seedOnce())
+            return;
+        Thread retry = new Thread(() -> {
+            try {
+                do {
+                    Thread.sleep(RETRY);
+                } while (!seedOnce());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }, "ObsFeed");
+        retry.setDaemon(true);
+        retry.start();
+    }
+
+    /**
+     * Has seeding succeeded? Until it has, the in-memory structures are
+     * empty; once it has, they are kept up to date with observations
+     * from every node.
+     */
+    public static boolean isSeeded() {
+        return seeded;
+    }
+
+    /**
+     * Do the in-memory structures have every observation in a period?
+     * That is so if seeding went back that far, and the tail has since
+     * caught up with everything recorded by the end of it, on any node.
+     * @param since     Start of the period, ms.
+     * @param until     End of the period, ms.
+     */
+    public static boolean isComplete(long since, long until) {
+        return since >= completeSince && until <= caughtUp;
+    }
+
+    /* Nothing is distributed until everything has been read, so that a
+       failed attempt can simply be repeated. */
+    private static boolean seedOnce() {
+        List<Observation> batch = new ArrayList<Observation>();
+        long since = System.currentTimeMillis() - SEED_WINDOW;
+        long maxId = 0L;
+        try (Connection conn = getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                ResultSet rs = stmt.executeQuery("select max(id) from observations");
+                if (rs.next())
+                    maxId = rs.getLong(1);
+            }
+
+            /* what the segment store has */
+            SegmentStore store = SegmentStore.getInstance();
+            long after = 0L;
+            Set<Long> seen = new HashSet<Long>();
+            if (store != null) {
+                final long through = after = store.getCompleteThrough();
+                final long max = maxId;
+                store.scan(-90.0, -180.0, 90.0, 180.0, since, Long.MAX_VALUE,
+                    Integer.MIN_VALUE, Integer.MAX_VALUE, o -> {
+                        if (o.getId() > max)
+                            return;
+                        if (o.getId() > through)
+                            seen.add(o.getId());
+                        batch.add(o);
+                    });
+            }
+
+            /* and the rest */
+            try (PreparedStatement stmt = conn.prepareStatement("select " + Observation.COLUMNS + " from observations where observed > ? and id > ? and id <= ?")) {
+                stmt.setTimestamp(1, new Timestamp(since));
+                stmt.setLong(2, after);
+                stmt.setLong(3, maxId);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    Observation o = Observation.fromResultSet(rs);
+                    if (!seen.contains(o.getId()))
+                        batch.add(o);
+                }
+            }
+        } catch (NamingException|SQLException e) {
+            /* not fatal; the structures just stay empty until we succeed */
+            LOGGER.log(Level.SEVERE, "Unable to seed in-memory observations, will retry", e);
+            return false;
+        }
+        Set<Long> found = new HashSet<Long>();
+        for (Observation o : batch) {
+            if (o.getId() > maxId - MAX_GAP)
+                found.add(o.getId());
+            distribute(o);
+        }
+        completeSince = since;
+        seeded = true;
+        int n = batch.size();
+        LOGGER.log(Level.INFO, String.format("Seeded with %d observation%s", n, n==1? "": "s"));
+
+        /* IDs just below maxId that we didn't find may not have been
+           committed yet, so look for them the way the tail looks for
+           IDs it skips over */
+        final List<Long> missing = new ArrayList<Long>();
+        for (long id = Math.max(1L, maxId - MAX_GAP + 1L); id <= maxId && missing.size() < MAX_GAPS; id++)
+            if (!found.contains(id))
+                missing.add(id);
+        final long through = maxId;
+        tailer.execute(() -> {
+            cursor = through;
+            long now = System.currentTimeMillis();
+            for (Long id : missing)
+                gaps.put(id, now);
+        });
+        tailer.scheduleWithFixedDelay(ObsFeed::tail, TAIL_INTERVAL, TAIL_INTERVAL, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /* Pick up whatever has been recorded since the last poll, by any
+       node, including anything that has turned up in the gaps. */
+    private static void tail() {
+        long now = System.currentTimeMillis();
+        try (Connection conn = getPrimaryConnection()) {
+            List<Long> missing = new ArrayList<Long>(gaps.keySet());
+            for (int start=0; start<missing.size(); start+=IN_BATCH) {
+                StringBuilder ids = new StringBuilder();
+                for (Long id : missing.subList(start, Math.min(start + IN_BATCH, missing.size()))) {
+                    if (ids.length() > 0)
+                        ids.append(',');
+                    ids.append(id);
+                }
+                try (Statement stmt = conn.createStatement()) {
+                    ResultSet rs = stmt.executeQuery("select " + Observation.COLUMNS + " from observations where id in (" + ids + ")");
+                    while (rs.next()) {
+                        Observation o = Observation.fromResultSet(rs);
+                        gaps.remove(o.getId());
+                        accept(o, now);
+                    }
+                }
+            }
+            gaps.values().removeIf(t -> now - t > GAP_WAIT);
+            try (PreparedStatement stmt = conn.prepareStatement("select " + Observation.COLUMNS + " from observations where id > ? order by id limit ?")) {
+                stmt.setLong(1, cursor);
+                stmt.setInt(2, TAIL_LIMIT);
+                ResultSet rs = stmt.executeQuery();
+                int n = 0;
+                while (rs.next()) {
+                    n++;
+                    Observation o = Observation.fromResultSet(rs);
+                    long id = o.getId();
+                    if (id - cursor <= MAX_GAP)
+                        for (long g = cursor + 1L; g < id && gaps.size() < MAX_GAPS; g++)
+                            gaps.put(g, now);
+                    cursor = id;
+                    accept(o, now);
+                }
+                if (n < TAIL_LIMIT)
+                    caughtUp = now;
+            }
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.WARNING, "Unable to read new observations", e);
+        }
+    }
+
+    /* Take a newly-found observation. */
+    private static void accept(Observation o, long now) {
+        SegmentStore store = SegmentStore.getInstance();
+        if (store != null)
+            store.append(o);
+        if (o.getObserved() > now - SEED_WINDOW)
+            distribute(o);
+    }
+
+    private static Connection getConnection() throws NamingException, SQLException {
+        return ReadRouter.getConnection();
+    }
+
+    /* The tail reads from the primary; a replica could be behind by more
+       than GAP_WAIT. */
+    private static Connection getPrimaryConnection() throws NamingException, SQLException {
+        Context c = (Context) (new InitialContext()).lookup("java:comp/env");
+        DataSource d = (DataSource) c.lookup("jdbc/WxDB");
+        return d.getConnection();
+    }
+}
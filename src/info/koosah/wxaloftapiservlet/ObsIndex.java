@@ -0,0 +1,198 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory spatial-temporal index of recent observations. Time is
+ * split into fixed partitions, each of which buckets its observations
+ * into a lat/long grid, so a query only looks at the buckets that
+ * overlap its time window and bounding box. Eviction just drops whole
+ * partitions once they are older than RETENTION. Observations are added
+ * by ObsFeed, which tails the observations table, so the index holds
+ * those received by every node, a second or two after they are recorded.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class ObsIndex {
+    /** Span of one time partition, in ms. */
+    public static final long PARTITION = 10L * 60L * 1000L;
+
+    /** How long observations are kept, in ms. Matches ObsData's limit. */
+    public static final long RETENTION = 6L * 60L * 60L * 1000L;
+
+    /** Size of a bucket, in degrees of latitude and longitude. */
+    public static final double CELL_DEGREES = 0.25;
+
+    private static final ObsIndex INSTANCE = new ObsIndex();
+
+    private final ConcurrentSkipListMap<Long, Partition> partitions = new ConcurrentSkipListMap<Long, Partition>();
+
+    /**
+     * Get the index shared by all servlets.
+     */
+    public static ObsIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Add an observation to the index.
+     */
+    public void add(Observation obs) {
+        long now = System.currentTimeMillis();
+        long oldest = now - RETENTION;
+        if (obs.getObserved() < oldest)
+            return;
+        partitions.computeIfAbsent(Math.floorDiv(obs.getObserved(), PARTITION) * PARTITION, k -> new Partition())
+            .add(obs);
+        evict(oldest);
+    }
+
+    /**
+     * Drop all partitions entirely older than the specified time.
+     */
+    public void evict(long oldest) {
+        Map.Entry<Long, Partition> first;
+        while ((first = partitions.firstEntry()) != null && first.getKey() + PARTITION <= oldest)
+            partitions.remove(first.getKey());
+    }
+
+    /**
+     * Find all observations in a bounding box, time window and altitude
+     * range. Bounds are inclusive. A box crossing the antimeridian may be
+     * specified with west > east. Callers must keep latitudes within
+     * [-90, 90] and longitudes within [-180, 180].
+     * @param south     Southern boundary, degrees.
+     * @param west      Western boundary, degrees.
+     * @param north     Northern boundary, degrees.
+     * @param east      Eastern boundary, degrees.
+     * @param since     Earliest observation time, ms.
+     * @param until     Latest observation time, ms.
+     * @param minAlt    Lowest altitude, feet.
+     * @param maxAlt    Highest altitude, feet.
+     * @param sink      Where to send the observations found.
+     */
+    public void query(double south, double west, double north, double east,
+      long since, long until, int minAlt, int maxAlt, Consumer<Observation> sink) {
+        if (west > east) {
+            query(south, west, north, 180.0, since, until, minAlt, maxAlt, sink);
+            query(south, -180.0, north, east, since, until, minAlt, maxAlt, sink);
+            return;
+        }
+        int lat0 = index(south), lat1 = index(north);
+        int lon0 = index(west), lon1 = index(east);
+        long cells = ((long) lat1 - lat0 + 1) * ((long) lon1 - lon0 + 1);
+        ConcurrentNavigableMap<Long, Partition> window =
+            partitions.subMap(Math.floorDiv(since, PARTITION) * PARTITION, true, until, true);
+        for (Partition p : window.values()) {
+            /* big boxes are cheaper to do by scanning every bucket */
+            if (cells > p.buckets.size()) {
+                for (Bucket b : p.buckets.values())
+                    b.scan(south, west, north, east, since, until, minAlt, maxAlt, sink);
+                continue;
+            }
+            for (int i=lat0; i<=lat1; i++) {
+                for (int j=lon0; j<=lon1; j++) {
+                    Bucket b = p.buckets.get(key(i, j));
+                    if (b != null)
+                        b.scan(south, west, north, east, since, until, minAlt, maxAlt, sink);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find all observations within a radius of a point, in a time window
+     * and altitude range.
+     * @param lat       Latitude of centre, degrees.
+     * @param lon       Longitude of centre, degrees.
+     * @param km        Radius, km.
+     * @param since     Earliest observation time, ms.
+     * @param until     Latest observation time, ms.
+     * @param minAlt    Lowest altitude, feet.
+     * @param maxAlt    Highest altitude, feet.
+     * @param sink      Where to send the observations found.
+     */
+    public void query(double lat, double lon, double km, long since, long until,
+      int minAlt, int maxAlt, Consumer<Observation> sink) {
+        double dLat = km / Geo.KM_PER_DEGREE;
+        double south = Math.max(-90.0, lat - dLat);
+        double north = Math.min(90.0, lat + dLat);
+        double dLon = Geo.lonDegrees(km, Math.max(Math.abs(south), Math.abs(north)));
+        double west = -180.0, east = 180.0;
+        if (dLon < 180.0) {
+            west = normalize(lon - dLon);
+            east = normalize(lon + dLon);
+        }
+        query(south, west, north, east, since, until, minAlt, maxAlt, obs -> {
+            if (Geo.kilometers(lat, lon, obs.getLatitude(), obs.getLongitude()) <= km)
+                sink.accept(obs);
+        });
+    }
+
+    private static double normalize(double lon) {
+        if (lon < -180.0)
+            return lon + 360.0;
+        if (lon > 180.0)
+            return lon - 360.0;
+        return lon;
+    }
+
+    private static int index(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long key(int latIndex, int lonIndex) {
+        return ((long) latIndex << 32) | (lonIndex & 0xffffffffL);
+    }
+
+    /* One time partition. */
+    private static class Partition {
+        final ConcurrentHashMap<Long, Bucket> buckets = new ConcurrentHashMap<Long, Bucket>();
+
+        void add(Observation obs) {
+            buckets.computeIfAbsent(key(index(obs.getLatitude()), index(obs.getLongitude())), k -> new Bucket())
+                .add(obs);
+        }
+    }
+
+    /* The observations in one grid cell of one partition. Appends are
+       serialized; readers take no lock, relying on the volatile write of
+       count to publish both the array and its contents. */
+    private static class Bucket {
+        private Observation[] items = new Observation[8];
+        private volatile int count = 0;
+
+        synchronized void add(Observation obs) {
+            int n = count;
+            if (n == items.length) {
+                Observation[] grown = new Observation[n * 2];
+                System.arraycopy(items, 0, grown, 0, n);
+                items = grown;
+            }
+            items[n] = obs;
+            count = n + 1;
+        }
+
+        void scan(double south, double west, double north, double east,
+          long since, long until, int minAlt, int maxAlt, Consumer<Observation> sink) {
+            int n = count;
+            Observation[] a = items;
+            for (int i=0; i<n; i++) {
+                Observation o = a[i];
+                if (o.getObserved() < since || o.getObserved() > until)
+                    continue;
+                if (o.getAltitude() < minAlt || o.getAltitude() > maxAlt)
+                    continue;
+                if (o.getLatitude() < south || o.getLatitude() > north)
+                    continue;
+                if (o.getLongitude() < west || o.getLongitude() > east)
+                    continue;
+                sink.accept(o);
+            }
+        }
+    }
+}
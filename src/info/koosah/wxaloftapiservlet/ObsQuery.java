@@ -0,0 +1,147 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.TimeZone;
+import javax.json.*;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Ad-hoc queries for observations in an arbitrary region: either a
+ * bounding box (bbox=south,west,north,east) or a circle (lat=, lon= and
+ * radius= in km), optionally limited by altitude (min_alt=, max_alt=).
+ * Served entirely from the in-memory ObsIndex, so no area need be defined
+ * in advance.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class ObsQuery extends HttpServlet {
+    private static final long serialVersionUID = -2707190460719356406L;
+
+    private static final SimpleDateFormat LOCAL_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    private static final SimpleDateFormat UTC_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    static {
+        UTC_TIME.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+    private static final Logger LOGGER = Logger.getLogger(ObsQuery.class.getCanonicalName());
+
+    private static final String DEFAULT_DURATION = "PT2H";
+
+    /**
+     * Seed the index from the database, so that it is not empty after a
+     * restart.
+     */
+    public void init() throws ServletException {
+        ObsFeed.seed();
+    }
+
+    /**
+     * Process a GET request by returning all matching observations.
+     * @param req     HttpServletRequest
+     * @param resp    HttpServletResponse
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        /* determine time zone to use; there's no area, so default to UTC */
+        SimpleDateFormat dFormat = null;
+        String zone = req.getParameter("zone");
+        if (zone == null || "UTC".equals(zone) || "GMT".equals(zone)) {
+            dFormat = (SimpleDateFormat) UTC_TIME.clone();
+        } else {
+            dFormat = (SimpleDateFormat) LOCAL_TIME.clone();
+            dFormat.setTimeZone(TimeZone.getTimeZone(zone));
+        }
+
+        /* determine the time window */
+        long now = System.currentTimeMillis();
+        long since = -1L, until = -1L;
+        try {
+            since = now - millis(req.getParameter("since"), DEFAULT_DURATION);
+            until = now - millis(req.getParameter("until"), "PT0S");
+        } catch (DateTimeParseException e) {
+            LOGGER.log(Level.SEVERE, "Invalid duration", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid duration)");
+            return;
+        }
+        if (now - since > ObsIndex.RETENTION) {
+            LOGGER.log(Level.SEVERE, "Duration too long!");
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (excessive duration)");
+            return;
+        }
+
+        /* query the index */
+        final JsonArrayBuilder jaBuilder = Json.createArrayBuilder();
+        final SimpleDateFormat f = dFormat;
+        try {
+            int minAlt = intParam(req, "min_alt", Integer.MIN_VALUE);
+            int maxAlt = intParam(req, "max_alt", Integer.MAX_VALUE);
+            String bbox = req.getParameter("bbox");
+            if (bbox != null) {
+                String[] parts = bbox.split(",");
+                if (parts.length != 4) {
+                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (bbox must be south,west,north,east)");
+                    return;
+                }
+                ObsIndex.getInstance().query(
+                    degrees(parts[0], 90.0), degrees(parts[1], 180.0),
+                    degrees(parts[2], 90.0), degrees(parts[3], 180.0),
+                    since, until, minAlt, maxAlt, obs -> jaBuilder.add(obs.toJson(f)));
+            } else {
+                String lat = req.getParameter("lat");
+                String lon = req.getParameter("lon");
+                String radius = req.getParameter("radius");
+                if (lat == null || lon == null || radius == null) {
+                    LOGGER.log(Level.SEVERE, "Missing region");
+                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (need bbox= or lat=, lon= and radius=)");
+                    return;
+                }
+                double km = Double.parseDouble(radius);
+                if (!(km >= 0.0 && km < Double.POSITIVE_INFINITY))
+                    throw new IllegalArgumentException("Radius out of range: " + radius);
+                ObsIndex.getInstance().query(degrees(lat, 90.0),
+                    degrees(lon, 180.0), km,
+                    since, until, minAlt, maxAlt, obs -> jaBuilder.add(obs.toJson(f)));
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.SEVERE, "Invalid number", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid number)");
+            return;
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.SEVERE, "Out of range", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (coordinate or radius out of range)");
+            return;
+        }
+
+        /* send back JSON here */
+        resp.setStatus(200);
+        resp.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.println(jaBuilder.build().toString());
+        out.flush();
+    }
+
+    private long millis(String raw, String dflt) {
+        Duration d = Duration.parse(raw == null ? dflt : raw);
+        return d.getSeconds() * 1000L + d.getNano() / 1000000;
+    }
+
+    /* Parse a latitude or longitude, rejecting NaN and anything beyond
+       +/- limit degrees. */
+    private double degrees(String raw, double limit) {
+        double d = Double.parseDouble(raw);
+        if (!(Math.abs(d) <= limit))
+            throw new IllegalArgumentException("Coordinate out of range: " + raw);
+        return d;
+    }
+
+    private int intParam(HttpServletRequest req, String name, int dflt) {
+        String raw = req.getParameter(name);
+        return raw == null ? dflt : Integer.parseInt(raw);
+    }
+}
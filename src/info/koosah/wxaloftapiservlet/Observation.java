@@ -0,0 +1,174 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.util.Date;
+import javax.json.*;
+
+import info.koosah.acarsutils.AcarsObservation;
+
+/**
+ * An observation as recorded in the observations table. Immutable, so it
+ * can be shared freely between the in-memory structures built from it.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Observation {
+    private final long id;
+    private final long received;
+    private final long observed;
+    private final double frequency;
+    private final int clientId;
+    private final int altitude;
+    private final Short windSpeed;
+    private final Short windDirection;
+    private final Float temperature;
+    private final String source;
+    private final double latitude;
+    private final double longitude;
+
+    public Observation(long id, long received, long observed, double frequency,
+      int clientId, int altitude, Short windSpeed, Short windDirection,
+      Float temperature, String source, double latitude, double longitude) {
+        this.id = id;
+        this.received = received;
+        this.observed = observed;
+        this.frequency = frequency;
+        this.clientId = clientId;
+        this.altitude = altitude;
+        this.windSpeed = windSpeed;
+        this.windDirection = windDirection;
+        this.temperature = temperature;
+        this.source = source;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    /**
+     * Make one from a decoded observation, which must have full spacetime
+     * coordinates.
+     */
+    public Observation(long id, Date received, AcarsObservation obs,
+      double frequency, int clientId, String source) {
+        this(id, received.getTime(), obs.getObserved().getTime(), frequency,
+            clientId, obs.getAltitude(), obs.getWindSpeed(),
+            obs.getWindDirection(), obs.getTemperature(), source,
+            obs.getLatitude(), obs.getLongitude());
+    }
+
+    /**
+     * Columns, in order, that fromResultSet expects.
+     */
+    public static final String COLUMNS = "observations.id, observations.received, observations.observed, observations.frequency, observations.client_id, observations.altitude, observations.wind_speed, observations.wind_dir, observations.temperature, observations.source, observations.latitude, observations.longitude";
+
+    /**
+     * Make one from the current row of a result set selecting COLUMNS.
+     */
+    public static Observation fromResultSet(ResultSet rs) throws SQLException {
+        return fromResultSet(rs, 0);
+    }
+
+    /**
+     * Make one from the current row of a result set selecting COLUMNS,
+     * preceded by the specified number of other columns.
+     */
+    public static Observation fromResultSet(ResultSet rs, int offset) throws SQLException {
+        Timestamp received = rs.getTimestamp(offset + 2);
+        Timestamp observed = rs.getTimestamp(offset + 3);
+        short ws = rs.getShort(offset + 7);
+        Short windSpeed = rs.wasNull() ? null : ws;
+        short wd = rs.getShort(offset + 8);
+        Short windDirection = rs.wasNull() ? null : wd;
+        float t = rs.getFloat(offset + 9);
+        Float temperature = rs.wasNull() ? null : t;
+        return new Observation(rs.getLong(offset + 1),
+            received == null ? 0L : received.getTime(),
+            observed == null ? 0L : observed.getTime(),
+            rs.getDouble(offset + 4), rs.getInt(offset + 5),
+            rs.getInt(offset + 6), windSpeed, windDirection, temperature,
+            rs.getString(offset + 10), rs.getDouble(offset + 11),
+            rs.getDouble(offset + 12));
+    }
+
+    public long getId() { return id; }
+    public long getReceived() { return received; }
+    public long getObserved() { return observed; }
+    public double getFrequency() { return frequency; }
+    public int getClientId() { return clientId; }
+    public int getAltitude() { return altitude; }
+    public Short getWindSpeed() { return windSpeed; }
+    public Short getWindDirection() { return windDirection; }
+    public Float getTemperature() { return temperature; }
+    public String getSource() { return source; }
+    public double getLatitude() { return latitude; }
+    public double getLongitude() { return longitude; }
+
+    /**
+     * Make a JSON object with the same fields, in the same format, that
+     * ObsData returns.
+     * @param dFormat   Format to use for times.
+     */
+    public JsonObjectBuilder toJson(DateFormat dFormat) {
+        JsonObjectBuilder joBuilder = Json.createObjectBuilder()
+            .add("received", dFormat.format(new Date(received)))
+            .add("observed", dFormat.format(new Date(observed)))
+            .add("frequency", frequency)
+            .add("altitude", altitude);
+        if (windSpeed == null)
+            joBuilder.addNull("wind_speed");
+        else
+            joBuilder.add("wind_speed", windSpeed.longValue());
+        if (windDirection == null)
+            joBuilder.addNull("wind_dir");
+        else
+            joBuilder.add("wind_dir", windDirection.longValue());
+        if (temperature == null)
+            joBuilder.addNull("temperature");
+        else
+            /* a hack to hide rounding errors */
+            joBuilder.add("temperature", Double.parseDouble(temperature.toString()));
+        if (source == null)
+            joBuilder.addNull("source");
+        else
+            joBuilder.add("source", source);
+        return joBuilder
+            .add("latitude", latitude)
+            .add("longitude", longitude);
+    }
+
+    /**
+     * True if this observation has both wind speed and direction.
+     */
+    public boolean hasWind() {
+        return windSpeed != null && windDirection != null;
+    }
+
+    /**
+     * East-west component of the wind in knots (positive = blowing
+     * towards the east). Wind direction is where the wind comes from.
+     */
+    public double getWindU() {
+        return -windSpeed * Math.sin(Math.toRadians(windDirection));
+    }
+
+    /**
+     * North-south component of the wind in knots (positive = blowing
+     * towards the north).
+     */
+    public double getWindV() {
+        return -windSpeed * Math.cos(Math.toRadians(windDirection));
+    }
+
+    /**
+     * Turn a wind vector back into a direction (degrees, where it comes
+     * from, 0 to 359).
+     */
+    public static int direction(double u, double v) {
+        if (u == 0.0 && v == 0.0)
+            return 0;
+        long d = Math.round(Math.toDegrees(Math.atan2(-u, -v)));
+        return (int) ((d + 360L) % 360L);
+    }
+}
@@ -0,0 +1,162 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.TimeZone;
+import javax.json.*;
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Returns a vertical profile (pseudo-sounding) of wind and temperature
+ * near an air terminal, built from climb-out and descent reports. Served
+ * from the in-memory Profiles, which are kept sorted by altitude.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Profile extends HttpServlet {
+    private static final long serialVersionUID = 4416412069315790178L;
+
+    private static final SimpleDateFormat LOCAL_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    private static final SimpleDateFormat UTC_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    static {
+        UTC_TIME.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+    private static final Logger LOGGER = Logger.getLogger(Profile.class.getCanonicalName());
+
+    private static final String DEFAULT_DURATION = "PT2H";
+    private static final double DEFAULT_RADIUS = 50.0;
+    private static final int DEFAULT_BIN = 1000;
+
+    /**
+     * Seed the profiles from the database, so that they are not empty
+     * after a restart.
+     */
+    public void init() throws ServletException {
+        ObsFeed.seed();
+    }
+
+    /**
+     * Process a GET request by returning a profile.
+     * @param req     HttpServletRequest
+     * @param resp    HttpServletResponse
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        /* get the mandatory area */
+        String rawArea = req.getParameter("area");
+        if (rawArea == null) {
+            LOGGER.log(Level.SEVERE, "Missing area= parameter");
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing area= parameter)");
+            return;
+        }
+        Areas.Area area = null;
+        try {
+            area = Areas.find(rawArea);
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to resolve area", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to resolve area)");
+            return;
+        }
+        if (area == null) {
+            LOGGER.log(Level.SEVERE, "Unknown area " + rawArea);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown area)");
+            return;
+        }
+
+        /* get radius and bin depth */
+        double radius = DEFAULT_RADIUS;
+        int bin = DEFAULT_BIN;
+        try {
+            String raw = req.getParameter("radius");
+            if (raw != null)
+                radius = Double.parseDouble(raw);
+            raw = req.getParameter("bin");
+            if (raw != null)
+                bin = Integer.parseInt(raw);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.SEVERE, "Invalid number", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid number)");
+            return;
+        }
+        if (radius <= 0.0 || radius > Areas.RADIUS || bin <= 0) {
+            LOGGER.log(Level.SEVERE, "Radius or bin out of range");
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (radius or bin out of range)");
+            return;
+        }
+
+        /* determine time zone to use */
+        SimpleDateFormat dFormat = null;
+        String zone = req.getParameter("zone");
+        if (zone == null || "local".equals(zone)) {
+            dFormat = (SimpleDateFormat) LOCAL_TIME.clone();
+            dFormat.setTimeZone(TimeZone.getTimeZone(area.getTimezone()));
+        } else if ("UTC".equals(zone) || "GMT".equals(zone)) {
+            dFormat = (SimpleDateFormat) UTC_TIME.clone();
+        } else {
+            dFormat = (SimpleDateFormat) LOCAL_TIME.clone();
+            dFormat.setTimeZone(TimeZone.getTimeZone(zone));
+        }
+
+        /* determine how far back to go */
+        String rawSince = req.getParameter("since");
+        if (rawSince == null)
+            rawSince = DEFAULT_DURATION;
+        Duration d = null;
+        try {
+            d = Duration.parse(rawSince);
+        } catch (DateTimeParseException e) {
+            LOGGER.log(Level.SEVERE, "Invalid duration", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid duration)");
+            return;
+        }
+        long millis = d.getSeconds() * 1000L + d.getNano() / 1000000;
+        if (millis > Profiles.RETENTION) {
+            LOGGER.log(Level.SEVERE, "Duration too long!");
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (excessive duration)");
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        /* build the response */
+        JsonArrayBuilder jaBuilder = Json.createArrayBuilder();
+        for (Profiles.Level l : Profiles.getInstance().get(area, radius, now - millis, now, bin)) {
+            JsonObjectBuilder joBuilder = Json.createObjectBuilder()
+                .add("altitude", l.altitude)
+                .add("count", l.count)
+                .add("latest", dFormat.format(new java.util.Date(l.latest)));
+            if (l.windSpeed == null) {
+                joBuilder.addNull("wind_speed");
+                joBuilder.addNull("wind_dir");
+            } else {
+                joBuilder.add("wind_speed", Math.round(l.windSpeed));
+                joBuilder.add("wind_dir", l.windDirection);
+            }
+            if (l.temperature == null)
+                joBuilder.addNull("temperature");
+            else
+                joBuilder.add("temperature", Math.round(l.temperature * 10.0) / 10.0);
+            jaBuilder.add(joBuilder);
+        }
+        JsonObject result = Json.createObjectBuilder()
+            .add("area", area.getName())
+            .add("radius", radius)
+            .add("bin_feet", bin)
+            .add("levels", jaBuilder)
+            .build();
+
+        /* send back JSON here */
+        resp.setStatus(200);
+        resp.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.println(result.toString());
+        out.flush();
+    }
+}
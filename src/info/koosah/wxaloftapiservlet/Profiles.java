@@ -0,0 +1,142 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Recent observations for each area, kept sorted by altitude as they
+ * arrive, so that a vertical profile (pseudo-sounding) is one in-order
+ * pass rather than a query and a sort. They arrive from ObsFeed, which
+ * tails the observations table, so they include those received by every
+ * node, a second or two after they are recorded.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Profiles {
+    /** How long observations are kept, in ms. */
+    public static final long RETENTION = ObsIndex.RETENTION;
+
+    private static final Profiles INSTANCE = new Profiles();
+    private static final Comparator<Observation> BY_ALTITUDE =
+        Comparator.comparingInt(Observation::getAltitude).thenComparingLong(Observation::getId);
+
+    private final ConcurrentHashMap<Integer, AreaProfile> areas = new ConcurrentHashMap<Integer, AreaProfile>();
+
+    /**
+     * Get the profiles shared by all servlets.
+     */
+    public static Profiles getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Add an observation to the profile for an area.
+     */
+    public void add(int areaId, Observation obs) {
+        long oldest = System.currentTimeMillis() - RETENTION;
+        if (obs.getObserved() < oldest)
+            return;
+        AreaProfile p = areas.computeIfAbsent(areaId, k -> new AreaProfile());
+        p.byAltitude.add(obs);
+        p.byArrival.add(obs);
+        p.evict(oldest);
+    }
+
+    /**
+     * Compute a vertical profile.
+     * @param area      Area (terminal) the profile is for.
+     * @param km        Only use observations this close to the terminal.
+     * @param since     Earliest observation time, ms.
+     * @param until     Latest observation time, ms.
+     * @param bin       Depth of each level, in feet.
+     * @return          Levels, lowest first; empty levels are omitted.
+     */
+    public List<Level> get(Areas.Area area, double km, long since, long until, int bin) {
+        List<Level> ret = new ArrayList<Level>();
+        AreaProfile p = areas.get(area.getId());
+        if (p == null)
+            return ret;
+        p.evict(System.currentTimeMillis() - RETENTION);
+        Level current = null;
+        for (Observation o : p.byAltitude) {
+            if (o.getObserved() < since || o.getObserved() > until)
+                continue;
+            if (Geo.kilometers(area.getLatitude(), area.getLongitude(), o.getLatitude(), o.getLongitude()) > km)
+                continue;
+            int b = Math.floorDiv(o.getAltitude(), bin);
+            if (current == null || current.index != b) {
+                if (current != null)
+                    ret.add(current.finish());
+                current = new Level(b, bin);
+            }
+            current.add(o);
+        }
+        if (current != null)
+            ret.add(current.finish());
+        return ret;
+    }
+
+    /* Observations for one area, by altitude and by arrival. */
+    private static class AreaProfile {
+        final ConcurrentSkipListSet<Observation> byAltitude = new ConcurrentSkipListSet<Observation>(BY_ALTITUDE);
+        final ConcurrentLinkedQueue<Observation> byArrival = new ConcurrentLinkedQueue<Observation>();
+
+        void evict(long oldest) {
+            Observation o;
+            while ((o = byArrival.peek()) != null && o.getObserved() < oldest) {
+                if (byArrival.remove(o))
+                    byAltitude.remove(o);
+            }
+        }
+    }
+
+    /**
+     * One level of a profile.
+     */
+    public static class Level {
+        final int index;
+        public int altitude;
+        public int count = 0;
+        public long latest = 0L;
+        public Double windSpeed;
+        public Integer windDirection;
+        public Double temperature;
+        private int nWind = 0, nTemp = 0;
+        private double sumU = 0.0, sumV = 0.0, sumT = 0.0;
+
+        Level(int index, int bin) {
+            this.index = index;
+            this.altitude = index * bin + bin / 2;
+        }
+
+        void add(Observation o) {
+            count++;
+            if (o.getObserved() > latest)
+                latest = o.getObserved();
+            if (o.hasWind()) {
+                nWind++;
+                sumU += o.getWindU();
+                sumV += o.getWindV();
+            }
+            if (o.getTemperature() != null) {
+                nTemp++;
+                sumT += o.getTemperature();
+            }
+        }
+
+        Level finish() {
+            if (nWind > 0) {
+                double u = sumU / nWind, v = sumV / nWind;
+                windSpeed = Math.hypot(u, v);
+                windDirection = Observation.direction(u, v);
+            }
+            if (nTemp > 0)
+                temperature = sumT / nTemp;
+            return this;
+        }
+    }
+}
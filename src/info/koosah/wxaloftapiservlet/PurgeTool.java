@@ -8,7 +8,8 @@ import java.text.SimpleDateFormat;
  * @author n5jrn@me.com
  * @since 2017-11-16
  *
- * A command-line tool for purging old observations.
+ * A command-line tool for purging old observations. Observations are
+ * rolled up (see Rollup) before any are purged.
  */
 public class PurgeTool
 {
@@ -75,12 +76,27 @@ public class PurgeTool
             System.exit(1);
         }
 
-        /* finally, purge */
+        /* roll up what's new first, so nothing is lost */
+        long lastId = 0L;
+        try {
+            conn.setAutoCommit(false);
+            long r = Rollup.run(conn);
+            System.out.format("%d observation%s rolled up%n", r, r==1? "": "s");
+            lastId = Rollup.getLastId(conn);
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            System.err.format("%s: %s%n", MYNAME, e.getMessage());
+            System.err.format("%s: unable to roll up data%n", MYNAME);
+            System.exit(1);
+        }
+
+        /* finally, purge; only what has been rolled up */
         long since = System.currentTimeMillis() - days * 86400000L;
         System.out.println("Purging data older than " +
             LOCAL_TIME.format(new java.util.Date(since)));
-        try (PreparedStatement stmt = conn.prepareStatement("delete from observations where observed < ?")) {
+        try (PreparedStatement stmt = conn.prepareStatement("delete from " + Schema.observationsTable(conn) + " where observed < ? and id <= ?")) {
             stmt.setTimestamp(1, new java.sql.Timestamp(since));
+            stmt.setLong(2, lastId);
             int c = stmt.executeUpdate();
             System.out.format("%d observation%s deleted%n", c, c==1? "": "s");
         } catch (SQLException e) {
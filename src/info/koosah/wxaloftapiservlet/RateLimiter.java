@@ -0,0 +1,163 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.json.*;
+
+/**
+ * Admission control for ReceiveAcars. There are two layers: a global
+ * limit on the number of requests doing database work at once (derived
+ * from maxActive in context.xml, so that other users of the pool always
+ * have connections left), and a per-client token
+ * bucket, so that one misbehaving receiver cannot eat everyone else's
+ * share.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class RateLimiter {
+    /** Servlet context attribute under which ReceiveAcars publishes its limiter. */
+    public static final String ATTRIBUTE = RateLimiter.class.getCanonicalName();
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final Semaphore concurrency;
+    private final int maxConcurrent;
+    private final double defaultRate;
+    private final int defaultBurst;
+    private final ConcurrentHashMap<Integer, Bucket> buckets = new ConcurrentHashMap<Integer, Bucket>();
+
+    /* statistics */
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shedGlobal = new LongAdder();
+    private final LongAdder shedClient = new LongAdder();
+    private final ConcurrentHashMap<Integer, LongAdder> shedByClient = new ConcurrentHashMap<Integer, LongAdder>();
+
+    /**
+     * Constructor.
+     * @param maxConcurrent Maximum requests allowed to do database work at once.
+     * @param defaultRate   Messages per second for clients with no rate set.
+     * @param defaultBurst  Burst size for clients with no burst set.
+     */
+    public RateLimiter(int maxConcurrent, double defaultRate, int defaultBurst) {
+        this.maxConcurrent = maxConcurrent;
+        this.concurrency = new Semaphore(maxConcurrent);
+        this.defaultRate = defaultRate;
+        this.defaultBurst = defaultBurst;
+    }
+
+    /**
+     * Try to enter the database-using section. Never blocks; if this
+     * returns true, the caller must call exit() when done.
+     * @return          True if admitted, false if the request should be shed.
+     */
+    public boolean enter() {
+        if (concurrency.tryAcquire())
+            return true;
+        shedGlobal.increment();
+        return false;
+    }
+
+    /**
+     * Leave the database-using section.
+     */
+    public void exit() {
+        concurrency.release();
+    }
+
+    /**
+     * Charge one message to a client's token bucket.
+     * @param client    Client ID.
+     * @param rate      Messages per second from the clients table, null for default.
+     * @param burst     Burst size from the clients table, null for default.
+     * @return          0 if admitted, else how many nanoseconds to wait.
+     */
+    public long admit(int client, Double rate, Integer burst) {
+        double r = rate == null ? defaultRate : rate;
+        int b = burst == null ? defaultBurst : burst;
+        if (r <= 0.0) {
+            /* no limit for this client */
+            admitted.increment();
+            return 0L;
+        }
+        if (b < 1)
+            b = 1;
+        long interval = Math.max(1L, (long) (NANOS_PER_SECOND / r));
+        long now = System.nanoTime();
+
+        /* the limits can be changed in the clients table at any time */
+        Bucket bucket = buckets.get(client);
+        if (bucket == null || bucket.interval != interval || bucket.burst != b) {
+            final long i = interval;
+            final int bb = b;
+            bucket = buckets.compute(client, (k, v) ->
+                (v != null && v.interval == i && v.burst == bb) ? v : new Bucket(i, bb, now));
+        }
+
+        long wait = bucket.take(now);
+        if (wait == 0L) {
+            admitted.increment();
+        } else {
+            shedClient.increment();
+            shedByClient.computeIfAbsent(client, k -> new LongAdder()).increment();
+        }
+        return wait;
+    }
+
+    /**
+     * Convert a wait time into a value for a Retry-After header.
+     * @param nanos     Nanoseconds to wait.
+     * @return          Whole seconds, rounded up, at least 1.
+     */
+    public static long retryAfter(long nanos) {
+        return Math.max(1L, (nanos + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND);
+    }
+
+    /**
+     * Report what we've been doing.
+     * @return          JSON object of admission and shed counts.
+     */
+    public JsonObject toJson() {
+        JsonObjectBuilder byClient = Json.createObjectBuilder();
+        for (Map.Entry<Integer, LongAdder> e : shedByClient.entrySet())
+            byClient.add(e.getKey().toString(), e.getValue().sum());
+        return Json.createObjectBuilder()
+            .add("max_concurrent", maxConcurrent)
+            .add("in_flight", maxConcurrent - concurrency.availablePermits())
+            .add("admitted", admitted.sum())
+            .add("shed_global", shedGlobal.sum())
+            .add("shed_client", shedClient.sum())
+            .add("shed_by_client", byClient)
+            .build();
+    }
+
+    /* A token bucket, implemented as a generic cell rate algorithm so that
+       its entire state is one long and it can be updated lock-free. */
+    private static class Bucket {
+        final long interval;
+        final int burst;
+        final long tolerance;
+        final AtomicLong tat;  /* theoretical arrival time */
+
+        Bucket(long interval, int burst, long now) {
+            this.interval = interval;
+            this.burst = burst;
+            this.tolerance = interval * burst;
+            this.tat = new AtomicLong(now);
+        }
+
+        long take(long now) {
+            while (true) {
+                long t = tat.get();
+                long next = Math.max(t, now) + interval;
+                long wait = next - tolerance - now;
+                if (wait > 0L)
+                    return wait;
+                if (tat.compareAndSet(t, next))
+                    return 0L;
+            }
+        }
+    }
+}
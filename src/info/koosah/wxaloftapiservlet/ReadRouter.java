@@ -0,0 +1,185 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.*;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+/**
+ * Routes read-only work to jdbc/WxDBRead, a separate pool normally
+ * pointing at a replica, so heavy map polling can't starve ingest of
+ * connections to the primary. Uses the primary (jdbc/WxDB) freely if the
+ * read pool isn't configured. If the replica is lagging too far behind,
+ * or the read pool can't supply a connection (usually because it is
+ * exhausted), only a few readers at a time may spill over onto the
+ * primary; the rest get a BusyException, which servlets turn into a
+ * 503. Otherwise a flood of map polling would just move on to exhaust
+ * the primary pool, which is what the read pool is there to prevent.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class ReadRouter {
+    private static final Logger LOGGER = Logger.getLogger(ReadRouter.class.getCanonicalName());
+
+    /* Replicas further behind than this many seconds are not used. */
+    private static final long MAX_LAG = 30L;
+
+    /* How often to check replication lag, in ms. */
+    private static final long CHECK_INTERVAL = 10000L;
+
+    /* At most this many primary connections at once may stand in for a
+       read pool that can't supply one. */
+    private static final int MAX_SPILLOVER = 3;
+    private static final Semaphore spillover = new Semaphore(MAX_SPILLOVER);
+
+    private static final ReentrantLock checking = new ReentrantLock();
+    private static volatile long lastCheck = 0L;
+    private static volatile long lag = 0L;
+
+    /* statistics */
+    private static final LongAdder replicaReads = new LongAdder();
+    private static final LongAdder primaryReads = new LongAdder();
+    private static final LongAdder fallbacks = new LongAdder();
+    private static final LongAdder spills = new LongAdder();
+    private static final LongAdder busy = new LongAdder();
+
+    /**
+     * Thrown when the read pool can't supply a usable connection and too
+     * many readers are already using the primary in its place.
+     */
+    public static class BusyException extends SQLException {
+        private static final long serialVersionUID = 2864409311276145871L;
+
+        public BusyException(Throwable cause) {
+            super("Read pool busy", cause);
+        }
+    }
+
+    /**
+     * Get a connection for read-only work.
+     * @throws BusyException if the read pool is exhausted or lagging and
+     *                  so is our allowance of primary connections to
+     *                  replace it.
+     */
+    public static Connection getConnection() throws NamingException, SQLException {
+        Context c = (Context) (new InitialContext()).lookup("java:comp/env");
+        if (lag > MAX_LAG && System.currentTimeMillis() - lastCheck <= CHECK_INTERVAL) {
+            fallbacks.increment();
+            return spill(c, null);
+        }
+        Connection conn = null;
+        try {
+            conn = ((DataSource) c.lookup("jdbc/WxDBRead")).getConnection();
+            checkLag(conn);
+            if (lag <= MAX_LAG) {
+                replicaReads.increment();
+                return conn;
+            }
+            conn.close();
+        } catch (NamingException e) {
+            /* no read pool configured; that's allowed, and the primary
+               is then the read pool */
+            primaryReads.increment();
+            return ((DataSource) c.lookup("jdbc/WxDB")).getConnection();
+        } catch (SQLException e) {
+            if (conn == null)
+                return spill(c, e);
+            /* got one, but the lag check failed; treat as lagging */
+            LOGGER.log(Level.WARNING, "Unable to check replica", e);
+            conn.close();
+        }
+        fallbacks.increment();
+        return spill(c, null);
+    }
+
+    /* Stand in for a read pool that can't supply a connection, or for a
+       lagging replica, if we haven't already done that too much. The
+       permit is released when the connection is closed. */
+    private static Connection spill(Context c, SQLException cause) throws NamingException, SQLException {
+        if (!spillover.tryAcquire()) {
+            busy.increment();
+            if (cause == null)
+                LOGGER.log(Level.WARNING, "Replica lagging and primary allowance used up");
+            else
+                LOGGER.log(Level.WARNING, "Read pool busy", cause);
+            throw new BusyException(cause);
+        }
+        Connection conn = null;
+        try {
+            conn = ((DataSource) c.lookup("jdbc/WxDB")).getConnection();
+        } finally {
+            if (conn == null)
+                spillover.release();
+        }
+        spills.increment();
+        primaryReads.increment();
+        final Connection real = conn;
+        final AtomicBoolean released = new AtomicBoolean(false);
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+          new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+            try {
+                return method.invoke(real, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (method.getName().equals("close") && released.compareAndSet(false, true))
+                    spillover.release();
+            }
+        });
+    }
+
+    /* Every so often, see how far behind the replica is. A server that
+       isn't a replica (e.g. both pools point at the same database) has no
+       lag; a replica that isn't replicating has infinite lag. */
+    private static void checkLag(Connection conn) throws SQLException {
+        if (System.currentTimeMillis() - lastCheck <= CHECK_INTERVAL || !checking.tryLock())
+            return;
+        try {
+            long newLag = 0L;
+            try (Statement stmt = conn.createStatement()) {
+                ResultSet rs = stmt.executeQuery("show slave status");
+                if (rs.next()) {
+                    newLag = rs.getLong("Seconds_Behind_Master");
+                    if (rs.wasNull())
+                        newLag = Long.MAX_VALUE;
+                }
+            }
+            if ((newLag > MAX_LAG) != (lag > MAX_LAG))
+                LOGGER.log(newLag > MAX_LAG ? Level.WARNING : Level.INFO,
+                    newLag > MAX_LAG ? "Replica lagging, reading from primary" : "Replica caught up");
+            lag = newLag;
+        } finally {
+            lastCheck = System.currentTimeMillis();
+            checking.unlock();
+        }
+    }
+
+    /**
+     * Report what we've been doing.
+     * @return          JSON object of routing counts and replica lag.
+     */
+    public static JsonObject toJson() {
+        JsonObjectBuilder b = Json.createObjectBuilder()
+            .add("replica_reads", replicaReads.sum())
+            .add("primary_reads", primaryReads.sum())
+            .add("fallbacks", fallbacks.sum())
+            .add("spills", spills.sum())
+            .add("busy", busy.sum())
+            .add("spilling", MAX_SPILLOVER - spillover.availablePermits());
+        if (lag == Long.MAX_VALUE)
+            b.addNull("replica_lag");
+        else
+            b.add("replica_lag", lag);
+        return b.build();
+    }
+}
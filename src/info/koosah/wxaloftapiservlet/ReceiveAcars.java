@@ -1,15 +1,23 @@
 package info.koosah.wxaloftapiservlet;
 
 import java.io.*;
+import java.math.BigDecimal;
 import java.sql.*;
 import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Formatter;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 import javax.json.*;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -48,67 +56,182 @@ public class ReceiveAcars extends HttpServlet {
        and we must keep it unambiguous which is which */
     private static final int MIN_FREQUENCY = 100;
 
-    /* Radius of interest (in km) around each air terminal defined in areas
-       table. */
-    private static double RADIUS = 350.0;
-
     /* Logger we use. */
     private static final Logger LOGGER = Logger.getLogger(ReceiveAcars.class.getCanonicalName());
 
+    /* Not defined in the servlet API we build against. */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /* Compact binary framing; see doPostBinary. */
+    private static final String BINARY_TYPE = "application/x-wxaloft-acars";
+    private static final int FRAME_VERSION = 1;
+    private static final int MAX_BATCH = 1000;
+    private static final int MAX_RECORD = 2048;
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    /* Single messages are small; anything bigger than this is refused. */
+    private static final int MAX_BODY = 16384;
+    private static final int SC_PAYLOAD_TOO_LARGE = 413;
+
+    /* Streaming sessions; see doPostStream. */
+    private static final String STREAM_TYPE = "application/x-ndjson";
+    private static final int MAX_LINE = 8192;
+    private static final long ACK_RECORDS = 100L;
+    private static final long ACK_INTERVAL = 1000L;
+    private static final long ENTER_WAIT = 30000L;
+    private static final JsonParserFactory PARSERS = Json.createParserFactory(null);
+
+    /* Admission control defaults; see web.xml for how to override these.
+       The concurrency limit is normally derived from the size of the
+       jdbc/WxDB pool, leaving POOL_RESERVE connections for everything
+       else that uses it (seeding, Coherence, fallback reads). */
+    private static final int DEFAULT_MAX_CONCURRENT = 15;
+    private static final int POOL_RESERVE = 5;
+    private static final double DEFAULT_RATE = 5.0;
+    private static final int DEFAULT_BURST = 60;
+
+    /* Each streaming session ties up a request thread for as long as it
+       lasts, so there is a separate, lower, limit on those. */
+    private static final int DEFAULT_MAX_SESSIONS = 20;
+
+    private RateLimiter limiter;
+    private int maxSessions;
+    private final AtomicInteger sessions = new AtomicInteger(0);
+
+    /**
+     * Set up admission control, and warm up before taking traffic.
+     */
+    public void init() throws ServletException {
+        try {
+            int poolSize = poolSize();
+            int maxConcurrent = poolSize > 0 ? Math.max(1, poolSize - POOL_RESERVE) : DEFAULT_MAX_CONCURRENT;
+            maxConcurrent = intParam("max-concurrent", maxConcurrent);
+            if (poolSize > 0 && maxConcurrent >= poolSize) {
+                LOGGER.log(Level.WARNING, String.format("max-concurrent %d not below pool size %d, using %d",
+                    maxConcurrent, poolSize, poolSize - 1));
+                maxConcurrent = Math.max(1, poolSize - 1);
+            }
+            limiter = new RateLimiter(maxConcurrent,
+                doubleParam("default-rate", DEFAULT_RATE),
+                intParam("default-burst", DEFAULT_BURST));
+            maxSessions = intParam("max-sessions", DEFAULT_MAX_SESSIONS);
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid admission control parameter", e);
+        }
+        getServletContext().setAttribute(RateLimiter.ATTRIBUTE, limiter);
+        Warmup.start();
+    }
+
+    // The maximum size of the jdbc/WxDB pool, or -1 if it can't be found.
+    // Tomcat's pool calls it maxActive, as does DBCP 1; DBCP 2, maxTotal.
+    private int poolSize() {
+        try {
+            Context c = (Context) (new InitialContext()).lookup("java:comp/env");
+            Object ds = c.lookup("jdbc/WxDB");
+            for (String name : new String[] { "getMaxActive", "getMaxTotal" }) {
+                try {
+                    Object ret = ds.getClass().getMethod(name).invoke(ds);
+                    if (ret instanceof Integer)
+                        return (Integer) ret;
+                } catch (ReflectiveOperationException e) {
+                    /* try the next one */
+                }
+            }
+        } catch (NamingException e) {
+            LOGGER.log(Level.WARNING, "Unable to look up connection pool", e);
+        }
+        return -1;
+    }
+
+    private int intParam(String name, int dflt) {
+        String raw = getInitParameter(name);
+        return raw == null ? dflt : Integer.parseInt(raw.trim());
+    }
+
+    private double doubleParam(String name, double dflt) {
+        String raw = getInitParameter(name);
+        return raw == null ? dflt : Double.parseDouble(raw.trim());
+    }
+
     /**
      * Process a POST request by receiving ACARS data.
      * @param req     HttpServletRequest
      * @param resp    HttpServletResponse
      */
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        // Read the request body.
-        JsonStructure js = null;
-        try (JsonReader reader = Json.createReader(req.getReader())) {
-            // Take offense at garbage JSON.
+        // Receivers on slow links may compress what they send us.
+        InputStream body = null;
+        String encoding = req.getHeader("Content-Encoding");
+        if (encoding == null || "identity".equalsIgnoreCase(encoding)) {
+            body = req.getInputStream();
+        } else if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
             try {
-                js = reader.read();
-            } catch (JsonException e) {
-                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid JSON)");
+                body = new GzipBody(req.getInputStream());
+            } catch (IOException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid gzip data)");
                 return;
             }
+        } else {
+            resp.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Unsupported media type (unknown content encoding)");
+            return;
         }
 
-        // We must get a JsonObject
-        if (!(js instanceof JsonObject)) {
-            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (expecting JSON object)");
+        // They may also send batches in a compact binary form.
+        String type = req.getContentType();
+        if (type != null && type.startsWith(BINARY_TYPE)) {
+            doPostBinary(req, resp, body);
+            return;
+        }
+        if (type != null && type.startsWith(STREAM_TYPE)) {
+            doPostStream(req, resp, body);
             return;
         }
 
-        // Obtain fields, taking offense if any are missing
-        JsonObject obj = (JsonObject) js;
-        String auth = null;
-        String time = null;
-        JsonNumber channel = null;
-        String message = null;
-        try {
-            auth = obj.getString("auth");
-            if (auth == null) {
-                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing auth)");
-                return;
-            }
-            time = obj.getString("time");
-            if (time == null) {
-                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing time)");
-                return;
-            }
-            channel = obj.getJsonNumber("channel");
-            if (channel == null) {
-                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing channel)");
-                return;
-            }
-            message = obj.getString("message");
-            if (message == null) {
-                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing message)");
-                return;
-            }
-        } catch (NullPointerException|ClassCastException e) {
-            LOGGER.log(Level.WARNING, "Missing or invalid item", e);
-            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing or invalid item)");
+        // Refuse bodies that are plainly too big before reading any of it.
+        if (req.getContentLengthLong() > MAX_BODY) {
+            resp.sendError(SC_PAYLOAD_TOO_LARGE, "Payload too large");
+            return;
+        }
+
+        // Pull the fields we need straight off the request body, without
+        // building a tree. The parser factory pools the parsers' buffers.
+        String charset = req.getCharacterEncoding();
+        CappedInputStream capped = new CappedInputStream(body, MAX_BODY);
+        IngestRecord r = null;
+        try (JsonParser parser = PARSERS.createParser(capped, charset == null ? UTF8 : Charset.forName(charset))) {
+            r = IngestRecord.parse(parser);
+        } catch (JsonException e) {
+            /* e.g. from close(); what we wanted is already parsed */
+        }
+        if (capped.isExceeded()) {
+            resp.sendError(SC_PAYLOAD_TOO_LARGE, "Payload too large");
+            return;
+        }
+
+        // Take offense at garbage JSON, or if any fields are missing or of
+        // the wrong type
+        if (r == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid JSON)");
+            return;
+        }
+        String auth = r.getAuth();
+        if (auth == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing or invalid auth)");
+            return;
+        }
+        String time = r.getTime();
+        if (time == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing or invalid time)");
+            return;
+        }
+        BigDecimal channel = r.getChannel();
+        if (channel == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing or invalid channel)");
+            return;
+        }
+        String message = r.getMessage();
+        if (message == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing or invalid message)");
             return;
         }
 
@@ -128,72 +251,558 @@ public class ReceiveAcars extends HttpServlet {
             return;
         }
 
-        // The authenticator will be validated here. On failure, return a 403
-        // (Forbidden) error. 401 (Unauthorized) is intended for use with an
-        // HTTP-based authentication method we don't use, so is not correct.
+        // Shed load before it gets anywhere near the connection pool:
+        // first clients sending too fast, if we already know who they
+        // are, then everyone if we're too busy.
+        Clients.Client client = Clients.cached(AuthTool.hash(auth));
+        if (client != null && !admit(client, resp))
+            return;
+        if (!limiter.enter()) {
+            resp.setHeader("Retry-After", "1");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (overloaded)");
+            return;
+        }
+
+        // Authenticate, check, and do it.
         try (Connection conn = getConnection()) {
 
-            // Authenticate
-            String cName = null;
-            int cId = -1;
-            boolean logAll = false;
-            boolean recordWx = false;
-            try (PreparedStatement stmt = conn.prepareStatement("select id, name, log_all, record_wx from clients where auth = ?")) {
-                stmt.setBytes(1, AuthTool.hash(auth));
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next()) {
-                    cId = rs.getInt(1);
-                    cName = rs.getString(2);
-                    logAll = rs.getBoolean(3);
-                    recordWx = rs.getBoolean(4);
-                } else {
-                    LOGGER.log(Level.WARNING, "Unknown authenticator " + see(auth));
-                    resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Forbidden (unknown authenticator)");
+            // Authenticate and enforce the rate limit, if the cache
+            // couldn't tell us who this is
+            if (client == null) {
+                client = authenticate(conn, auth, resp);
+                if (client == null)
+                    return;
+                if (!admit(client, resp))
                     return;
-                }
-            } catch (SQLException e) {
-                LOGGER.log(Level.SEVERE, "Error authenticating " + see(auth), e);
-                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to authenticate)");
-                return;
             }
 
             // Map channel number to frequency, if needed
             int ichannel = channel.intValue();
             double frequency = 0.0;
             if (ichannel < MIN_FREQUENCY) {
-                try (PreparedStatement stmt = conn.prepareStatement("select frequency from frequencies where client_id = ? and channel = ?")) {
-                    stmt.setInt(1, cId);
-                    stmt.setInt(2, ichannel);
-                    ResultSet rs = stmt.executeQuery();
-                    if (rs.next()) {
-                        frequency = rs.getDouble(1);
-                    } else {
-                        LOGGER.log(Level.WARNING, String.format("No frequency for channel %d client %d (%s)", ichannel, cId, cName));
-                        resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown channel)");
-                        return;
-                    }
+                Double f = null;
+                try {
+                    f = channelFrequency(conn, client, ichannel);
                 } catch (SQLException e) {
-                    LOGGER.log(Level.SEVERE, String.format("Error getting frequency for channel %d client %d (%s)", ichannel, cId, cName), e);
                     resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to get frequency)");
                     return;
                 }
+                if (f == null) {
+                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown channel)");
+                    return;
+                }
+                frequency = f;
             } else {
                 frequency = channel.doubleValue();
             }
 
             // Do actions
-            if (logAll)
-                logMessage(conn, parsed, cName, frequency, date);
-            if (recordWx)
-                recordMessage(conn, parsed, cName, frequency, date, cId);
+            process(conn, client, parsed, frequency, date);
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to obtain database connection", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to obtain DB connection)");
+            return;
+        } finally {
+            limiter.exit();
+        }
+
+        // AMF... there is nothing to say, so say nothing.
+        resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    /**
+     * Process a batch of messages in compact binary framing, which saves
+     * both bytes on the wire and parsing effort. All integers are
+     * big-endian. The body starts with a header:
+     *
+     *   version      1 byte, currently 1
+     *   auth         2-byte length, then the authenticator in UTF-8
+     *
+     * which is followed by up to MAX_BATCH records, until end of input:
+     *
+     *   time         8-byte milliseconds since the epoch
+     *   channel      4-byte channel number if less than 100, else the
+     *                frequency in kHz
+     *   message      2-byte length (at most MAX_RECORD), then the raw
+     *                ACARS message
+     *
+     * The reply is a tiny JSON object giving the number of records
+     * accepted and rejected (because they could not be parsed or were on
+     * an unknown channel). Records are processed in order, so if we stop
+     * early (e.g. with 429 when the client is sending too fast) the
+     * client should resend those after the first "accepted" +
+     * "rejected" of them. The whole batch is read before any of it is
+     * processed, so that a slow sender doesn't tie up a database
+     * connection; a batch that is malformed or too big is refused
+     * outright, with nothing accepted.
+     */
+    private void doPostBinary(HttpServletRequest req, HttpServletResponse resp, InputStream body) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(body));
+        String auth = null;
+        try {
+            if (in.readUnsignedByte() != FRAME_VERSION) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unsupported framing version)");
+                return;
+            }
+            auth = in.readUTF();
+        } catch (EOFException|UTFDataFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid header)");
+            return;
+        }
+
+        // Read the whole batch, off the network and into memory, before
+        // taking anything from the pool.
+        List<Frame> frames = new ArrayList<Frame>();
+        while (true) {
+            long time = 0L;
+            try {
+                time = in.readLong();
+            } catch (EOFException e) {
+                break;
+            }
+            if (frames.size() >= MAX_BATCH) {
+                sendAck(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, 0, 0);
+                return;
+            }
+            try {
+                int channel = in.readInt();
+                int length = in.readUnsignedShort();
+                if (length > MAX_RECORD) {
+                    sendAck(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, 0, 0);
+                    return;
+                }
+                byte[] raw = new byte[length];
+                in.readFully(raw);
+                frames.add(new Frame(time, channel, raw));
+            } catch (EOFException e) {
+                sendAck(resp, HttpServletResponse.SC_BAD_REQUEST, 0, 0);
+                return;
+            }
+        }
+
+        // Shed load before it gets anywhere near the connection pool: a
+        // client we know is sending too fast gets nothing accepted, and
+        // then nobody gets in if we're too busy.
+        Clients.Client client = Clients.cached(AuthTool.hash(auth));
+        boolean admitted = false;
+        if (client != null && !frames.isEmpty()) {
+            long wait = limiter.admit(client.getId(), client.getRate(), client.getBurst());
+            if (wait > 0L) {
+                LOGGER.log(Level.FINE, String.format("Rate limiting client %d (%s)", client.getId(), client.getName()));
+                resp.setHeader("Retry-After", Long.toString(RateLimiter.retryAfter(wait)));
+                sendAck(resp, SC_TOO_MANY_REQUESTS, 0, 0);
+                return;
+            }
+            admitted = true;
+        }
+        if (!limiter.enter()) {
+            resp.setHeader("Retry-After", "1");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (overloaded)");
+            return;
+        }
+
+        int accepted = 0, rejected = 0;
+        try (Connection conn = getConnection()) {
+            if (client == null) {
+                client = authenticate(conn, auth, resp);
+                if (client == null)
+                    return;
+            }
+            for (Frame frame : frames) {
+                // Each record counts against the rate limit; the first
+                // may have been counted already
+                long wait = admitted ? 0L : limiter.admit(client.getId(), client.getRate(), client.getBurst());
+                admitted = false;
+                if (wait > 0L) {
+                    LOGGER.log(Level.FINE, String.format("Rate limiting client %d (%s)", client.getId(), client.getName()));
+                    resp.setHeader("Retry-After", Long.toString(RateLimiter.retryAfter(wait)));
+                    sendAck(resp, SC_TOO_MANY_REQUESTS, accepted, rejected);
+                    return;
+                }
+
+                // Parse and process it
+                String message = new String(frame.raw, LATIN1);
+                AcarsMessage parsed = new AcarsMessage(message);
+                if (!parsed.parse()) {
+                    LOGGER.log(Level.SEVERE, "Unable to parse ACARS message " + see(message));
+                    rejected++;
+                    continue;
+                }
+                Double frequency = null;
+                if (frame.channel < MIN_FREQUENCY) {
+                    try {
+                        frequency = channelFrequency(conn, client, frame.channel);
+                    } catch (SQLException e) {
+                        sendAck(resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, accepted, rejected);
+                        return;
+                    }
+                } else {
+                    frequency = frame.channel / 1000.0;
+                }
+                if (frequency == null) {
+                    rejected++;
+                    continue;
+                }
+                process(conn, client, parsed, frequency, new java.util.Date(frame.time));
+                accepted++;
+            }
         } catch (NamingException|SQLException e) {
             LOGGER.log(Level.SEVERE, "Unable to obtain database connection", e);
             resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to obtain DB connection)");
             return;
+        } finally {
+            limiter.exit();
         }
+        sendAck(resp, HttpServletResponse.SC_OK, accepted, rejected);
+    }
+
+    // One record of a binary batch, as read.
+    private static class Frame {
+        final long time;
+        final int channel;
+        final byte[] raw;
 
-        // AMF...
-        sendSuccess(resp, HttpServletResponse.SC_OK);
+        Frame(long time, int channel, byte[] raw) {
+            this.time = time;
+            this.channel = channel;
+            this.raw = raw;
+        }
+    }
+
+    /**
+     * Process a streaming session: one long-lived (normally chunked) POST
+     * whose body is newline-delimited JSON. The first line authenticates
+     * the session:
+     *
+     *   {"auth": "..."}
+     *
+     * and each line after that is a message, with the same fields as a
+     * single POSTed message less auth, plus an optional sequence number:
+     *
+     *   {"seq": 1, "time": "...", "channel": 131.55, "message": "..."}
+     *
+     * Messages without a seq are numbered one more than the previous.
+     * As the session goes on, we send back newline-delimited cumulative
+     * acknowledgements, every ACK_RECORDS messages or ACK_INTERVAL ms,
+     * and whenever we've caught up with what has been sent:
+     *
+     *   {"ack": 100, "accepted": 98, "rejected": 2}
+     *
+     * meaning everything up to and including seq 100 has been dealt with.
+     * Rate limits are enforced by simply reading more slowly. A fatal
+     * error ends the session with a line containing "error" and the last
+     * seq dealt with; so does waiting more than ENTER_WAIT ms for a turn
+     * at the database, when the server is overloaded.
+     *
+     * Whenever we have read all the client has sent so far, we let go of
+     * our database connection and limiter slot until more arrives.
+     * Empty lines are ignored, and a client with nothing to send should
+     * send one at least every 10 seconds as a keepalive; otherwise the
+     * connector's read timeout (connectionTimeout, 20 s by default) ends
+     * the session. Each session occupies a request thread, so at most
+     * max-sessions of them run at once; beyond that the reply is 503.
+     */
+    private void doPostStream(HttpServletRequest req, HttpServletResponse resp, InputStream body) throws IOException {
+        if (sessions.incrementAndGet() > maxSessions) {
+            sessions.decrementAndGet();
+            LOGGER.log(Level.WARNING, "Too many streaming sessions");
+            resp.setHeader("Retry-After", "60");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (too many sessions)");
+            return;
+        }
+        try {
+            stream(req, resp, body);
+        } finally {
+            sessions.decrementAndGet();
+        }
+    }
+
+    private void stream(HttpServletRequest req, HttpServletResponse resp, InputStream body) throws IOException {
+        LineReader in = new LineReader(new InputStreamReader(body, UTF8));
+        StringBuilder line = new StringBuilder();
+
+        // Authenticate the session
+        IngestRecord header = null;
+        if (readLine(in, line))
+            header = parseLine(line);
+        if (header == null || header.getAuth() == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing or invalid session header)");
+            return;
+        }
+        String auth = header.getAuth();
+        try (Connection conn = getConnection()) {
+            if (authenticate(conn, auth, resp) == null)
+                return;
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to obtain database connection", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to obtain DB connection)");
+            return;
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(STREAM_TYPE + "; charset=UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.flush();
+
+        // Process messages as they come
+        Session session = new Session(auth);
+        long seq = 0L, acked = 0L, accepted = 0L, rejected = 0L;
+        long lastAck = System.currentTimeMillis();
+        try {
+            while (readLine(in, line)) {
+                if (line.length() == 0)
+                    continue;
+                IngestRecord r = line.length() > MAX_LINE ? null : parseLine(line);
+                seq = r != null && r.getSeq() != null ? r.getSeq() : seq + 1;
+                if (r == null || r.getTime() == null || r.getChannel() == null || r.getMessage() == null) {
+                    rejected++;
+                } else {
+                    Clients.Client client = session.acquire();
+                    if (client == null) {
+                        out.println("{\"error\":\"unknown authenticator\",\"ack\":" + acked + "}");
+                        return;
+                    }
+                    if (record(session, client, r))
+                        accepted++;
+                    else
+                        rejected++;
+                }
+
+                // Acknowledge what we've done, and let go of resources if
+                // reading the next line might have to wait for the client
+                long now = System.currentTimeMillis();
+                boolean idle = !in.isBuffered();
+                if (seq != acked && (idle || seq - acked >= ACK_RECORDS || now - lastAck >= ACK_INTERVAL)) {
+                    out.println("{\"ack\":" + seq + ",\"accepted\":" + accepted + ",\"rejected\":" + rejected + "}");
+                    out.flush();
+                    acked = seq;
+                    lastAck = now;
+                }
+                if (idle)
+                    session.release();
+            }
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Database error in streaming session", e);
+            out.println("{\"error\":\"database error\",\"ack\":" + acked + "}");
+            return;
+        } catch (InterruptedException e) {
+            out.println("{\"error\":\"interrupted\",\"ack\":" + acked + "}");
+            return;
+        } catch (OverloadedException e) {
+            LOGGER.log(Level.WARNING, "Streaming session gave up waiting for a turn");
+            out.println("{\"error\":\"overloaded\",\"ack\":" + acked + "}");
+            return;
+        } finally {
+            session.release();
+            out.flush();
+        }
+        if (seq != acked)
+            out.println("{\"ack\":" + seq + ",\"accepted\":" + accepted + ",\"rejected\":" + rejected + "}");
+    }
+
+    // Deal with one message in a streaming session, waiting as needed
+    // for the client's rate limit.
+    private boolean record(Session session, Clients.Client client, IngestRecord r) throws NamingException, SQLException, InterruptedException, OverloadedException {
+        long wait;
+        while ((wait = limiter.admit(client.getId(), client.getRate(), client.getBurst())) > 0L) {
+            session.release();
+            TimeUnit.NANOSECONDS.sleep(wait);
+            client = session.acquire();
+            if (client == null)
+                return false;
+        }
+        AcarsMessage parsed = new AcarsMessage(r.getMessage());
+        if (!parsed.parse()) {
+            LOGGER.log(Level.SEVERE, "Unable to parse ACARS message " + see(r.getMessage()));
+            return false;
+        }
+        java.util.Date date = null;
+        try {
+            date = JSON_TIME.parse(r.getTime());
+        } catch (ParseException e) {
+            LOGGER.log(Level.SEVERE, "Unable to parse time " + see(r.getTime()), e);
+            return false;
+        }
+        Double frequency = null;
+        int ichannel = r.getChannel().intValue();
+        if (ichannel < MIN_FREQUENCY)
+            frequency = channelFrequency(session.conn, client, ichannel);
+        else
+            frequency = r.getChannel().doubleValue();
+        if (frequency == null)
+            return false;
+        process(session.conn, client, parsed, frequency, date);
+        return true;
+    }
+
+    // The resources a streaming session holds while it has work to do: a
+    // slot in the limiter and a database connection. Sessions let go of
+    // them when idle, so that they don't starve ordinary requests.
+    private class Session {
+        final String auth;
+        Connection conn = null;
+        boolean entered = false;
+
+        Session(String auth) {
+            this.auth = auth;
+        }
+
+        // Returns the client, re-checked each time in case it has been
+        // revoked, or null if it has. Waits at most ENTER_WAIT ms for a
+        // slot in the limiter.
+        Clients.Client acquire() throws NamingException, SQLException, InterruptedException, OverloadedException {
+            if (conn == null) {
+                long deadline = System.currentTimeMillis() + ENTER_WAIT;
+                while (!limiter.enter()) {
+                    if (System.currentTimeMillis() >= deadline)
+                        throw new OverloadedException();
+                    Thread.sleep(1000L);
+                }
+                entered = true;
+                conn = getConnection();
+            }
+            return Clients.byAuth(conn, AuthTool.hash(auth));
+        }
+
+        void release() {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    LOGGER.log(Level.WARNING, "Unable to close connection", e);
+                }
+                conn = null;
+            }
+            if (entered) {
+                limiter.exit();
+                entered = false;
+            }
+        }
+    }
+
+    // Thrown when a session has waited too long for a slot.
+    private static class OverloadedException extends Exception {
+        private static final long serialVersionUID = 6311085172045931977L;
+    }
+
+    // Read a line into the buffer, returning false at end of input. Lines
+    // longer than MAX_LINE are cut off at MAX_LINE + 1 characters.
+    private boolean readLine(LineReader in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int ch;
+        while ((ch = in.read()) >= 0) {
+            if (ch == '\n')
+                return true;
+            if (ch != '\r' && line.length() <= MAX_LINE)
+                line.append((char) ch);
+        }
+        return line.length() > 0;
+    }
+
+    // A buffered reader for streaming sessions that can say whether it has
+    // anything buffered, i.e. whether the next read is sure not to wait on
+    // the network. (Reader.ready() can't be trusted for that: a
+    // GZIPInputStream claims to have more available right up until end of
+    // input.)
+    private static class LineReader {
+        private final Reader in;
+        private final char[] buf = new char[8192];
+        private int pos = 0, limit = 0;
+
+        LineReader(Reader in) {
+            this.in = in;
+        }
+
+        boolean isBuffered() {
+            return pos < limit;
+        }
+
+        int read() throws IOException {
+            if (pos >= limit) {
+                int n = in.read(buf, 0, buf.length);
+                if (n <= 0)
+                    return -1;
+                pos = 0;
+                limit = n;
+            }
+            return buf[pos++];
+        }
+    }
+
+    // A GZIPInputStream whose available() tells the truth: no more than
+    // the network has already delivered, once the inflater runs out of
+    // input. Otherwise an InputStreamReader, believing it can always read
+    // more without blocking, keeps reading to fill its buffer, and a
+    // streaming session's lines sit undecoded until more arrive.
+    private static class GzipBody extends GZIPInputStream {
+        GzipBody(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (inf.finished())
+                return 0;
+            return inf.needsInput() ? in.available() : 1;
+        }
+    }
+
+    private IngestRecord parseLine(CharSequence line) {
+        try (JsonParser parser = PARSERS.createParser(new StringReader(line.toString()))) {
+            return IngestRecord.parse(parser);
+        }
+    }
+
+    // The authenticator is validated here. On failure, return null after
+    // sending a 403 (Forbidden) error. 401 (Unauthorized) is intended for
+    // use with an HTTP-based authentication method we don't use, so is
+    // not correct.
+    private Clients.Client authenticate(Connection conn, String auth, HttpServletResponse resp) throws IOException {
+        Clients.Client client = null;
+        try {
+            client = Clients.byAuth(conn, AuthTool.hash(auth));
+        } catch (SQLException e) {
+            LOGGER.log(Level.SEVERE, "Error authenticating " + see(auth), e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to authenticate)");
+            return null;
+        }
+        if (client == null) {
+            LOGGER.log(Level.WARNING, "Unknown authenticator " + see(auth));
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Forbidden (unknown authenticator)");
+        }
+        return client;
+    }
+
+    // Enforce a client's rate limit, sending a 429 if it is exceeded.
+    private boolean admit(Clients.Client client, HttpServletResponse resp) throws IOException {
+        long wait = limiter.admit(client.getId(), client.getRate(), client.getBurst());
+        if (wait <= 0L)
+            return true;
+        LOGGER.log(Level.FINE, String.format("Rate limiting client %d (%s)", client.getId(), client.getName()));
+        resp.setHeader("Retry-After", Long.toString(RateLimiter.retryAfter(wait)));
+        resp.sendError(SC_TOO_MANY_REQUESTS, "Too many requests");
+        return false;
+    }
+
+    // Map a channel number to a frequency, or null if it's unknown.
+    private Double channelFrequency(Connection conn, Clients.Client client, int channel) throws SQLException {
+        Double f = null;
+        try {
+            f = Clients.frequency(conn, client.getId(), channel);
+        } catch (SQLException e) {
+            LOGGER.log(Level.SEVERE, String.format("Error getting frequency for channel %d client %d (%s)", channel, client.getId(), client.getName()), e);
+            throw e;
+        }
+        if (f == null)
+            LOGGER.log(Level.WARNING, String.format("No frequency for channel %d client %d (%s)", channel, client.getId(), client.getName()));
+        return f;
+    }
+
+    // Log and/or record a message, as the client's settings dictate.
+    private void process(Connection conn, Clients.Client client, AcarsMessage parsed, double frequency, java.util.Date date) {
+        if (client.getLogAll())
+            logMessage(conn, parsed, client.getName(), frequency, date);
+        if (client.getRecordWx())
+            recordMessage(conn, parsed, client.getName(), frequency, date, client.getId());
     }
 
     private void logMessage(Connection conn, AcarsMessage msg, String name, double freq, java.util.Date ti) {
@@ -328,9 +937,20 @@ public class ReceiveAcars extends HttpServlet {
             return;
 
         // Add observations to the database, silently ignoring duplicates.
+        // The compact schema stores some fields encoded; see Schema.
+        boolean compact = false;
+        Integer source = null;
+        try {
+            compact = Schema.isCompact(conn);
+            if (compact)
+                source = Schema.registration(conn, msg.getRegistration());
+        } catch (SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to determine schema", e);
+            return;
+        }
         try (
-            PreparedStatement stmt = conn.prepareStatement("insert into observations (received, observed, frequency, client_id, altitude, wind_speed, wind_dir, temperature, source, latitude, longitude) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-            PreparedStatement stmt2 = conn.prepareStatement("insert into obs_area (observation_id, area_id) select ? as oid, id from areas where kilometers(areas.latitude, areas.longitude, ?, ?) <= ?")
+            PreparedStatement stmt = conn.prepareStatement("insert into " + Schema.observationsTable(conn) + " (" + Schema.insertColumns(conn) + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+            PreparedStatement stmt2 = conn.prepareStatement("insert ignore into obs_area (observation_id, area_id) select ? as oid, id from areas where kilometers(areas.latitude, areas.longitude, ?, ?) <= ?")
         ) {
             long id = -1;
             for (AcarsObservation obs : observations) {
@@ -341,15 +961,22 @@ public class ReceiveAcars extends HttpServlet {
                 try {
                     stmt.setTimestamp(1, new Timestamp(ti.getTime()));
                     stmt.setTimestamp(2, new Timestamp(obs.getObserved().getTime()));
-                    stmt.setDouble(3, freq);
                     stmt.setInt(4, cl);
                     stmt.setInt(5, obs.getAltitude());
                     setObject(stmt, 6, obs.getWindSpeed(), Types.SMALLINT);
                     setObject(stmt, 7, obs.getWindDirection(), Types.SMALLINT);
                     setObject(stmt, 8, obs.getTemperature(), Types.FLOAT);
-                    stmt.setString(9, msg.getRegistration());
-                    stmt.setDouble(10, obs.getLatitude());
-                    stmt.setDouble(11, obs.getLongitude());
+                    if (compact) {
+                        stmt.setInt(3, Schema.frequency(freq));
+                        setObject(stmt, 9, source, Types.INTEGER);
+                        stmt.setInt(10, Schema.degrees(obs.getLatitude()));
+                        stmt.setInt(11, Schema.degrees(obs.getLongitude()));
+                    } else {
+                        stmt.setDouble(3, freq);
+                        stmt.setString(9, msg.getRegistration());
+                        stmt.setDouble(10, obs.getLatitude());
+                        stmt.setDouble(11, obs.getLongitude());
+                    }
                     stmt.executeUpdate();
                     ResultSet rs = stmt.getGeneratedKeys();
                     if (rs.next())
@@ -376,7 +1003,7 @@ public class ReceiveAcars extends HttpServlet {
                     stmt2.setLong(1, id);
                     stmt2.setDouble(2, obs.getLatitude());
                     stmt2.setDouble(3, obs.getLongitude());
-                    stmt2.setDouble(4, RADIUS);
+                    stmt2.setDouble(4, Areas.RADIUS);
                     stmt2.executeUpdate();
                 } catch (SQLWarning w) {
                     LOGGER.log(Level.WARNING, "Warning inserting obs_area", w);
@@ -398,19 +1025,71 @@ public class ReceiveAcars extends HttpServlet {
             stmt.setObject(ndx, obj, JDBCType.valueOf(type));
     }
 
+    // An input stream that reports end of input once a given number of
+    // bytes have been read, and remembers if there was more.
+    private static class CappedInputStream extends FilterInputStream {
+        private long remaining;
+        private boolean exceeded = false;
+
+        CappedInputStream(InputStream in, long max) {
+            super(in);
+            remaining = max;
+        }
+
+        public boolean isExceeded() { return exceeded; }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0L)
+                return over();
+            int ret = super.read();
+            if (ret >= 0)
+                remaining--;
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (remaining == 0L)
+                return over();
+            int ret = super.read(b, off, (int) Math.min(len, remaining));
+            if (ret > 0)
+                remaining -= ret;
+            return ret;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long ret = super.skip(Math.min(n, remaining));
+            remaining -= ret;
+            return ret;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private int over() throws IOException {
+            if (!exceeded && super.read() >= 0)
+                exceeded = true;
+            return -1;
+        }
+    }
+
     private Connection getConnection() throws NamingException, SQLException {
         Context c = (Context) (new InitialContext()).lookup("java:comp/env");
         DataSource d = (DataSource) c.lookup("jdbc/WxDB");
         return d.getConnection();
     }
 
-    private void sendSuccess(HttpServletResponse resp, int status) throws IOException {
+    private void sendAck(HttpServletResponse resp, int status, int accepted, int rejected) throws IOException {
         resp.setStatus(status);
+        resp.setContentType("application/json; charset=UTF-8");
         PrintWriter out = resp.getWriter();
-        out.println("<html>");
-        out.println("  <head><title>Success</title></head>");
-        out.println("  <body><p>The operation completed successfully.</p></body>");
-        out.println("</html>");
+        out.print("{\"accepted\":" + accepted + ",\"rejected\":" + rejected + "}");
         out.flush();
     }
 
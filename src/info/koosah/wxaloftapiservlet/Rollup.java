@@ -0,0 +1,221 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rolls raw observations up into hourly summaries per grid cell and
+ * altitude band (the same cells and bands as WindGrid), so climatology
+ * survives the purging of raw observations. Works in a single pass over
+ * ID-ordered chunks of observations not yet rolled up; each chunk's
+ * summaries are added to the rollups table, and the high-water mark in
+ * rollup_state advanced, in one transaction, so every observation is
+ * counted exactly once however often this is run or interrupted.
+ *
+ * Auto-increment IDs can commit out of order, so a row with a lower ID
+ * than one already rolled up could still be on its way, and would then
+ * be skipped for good (and purged unrolled). So each run goes no further
+ * than the highest ID that existed at least MARGIN before, as noted by
+ * an earlier run in rollup_state; a run soon after the last one, or the
+ * first ever, just notes the current highest ID for next time.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Rollup {
+    /** Length of a rollup period, in ms. */
+    public static final long HOUR = 60L * 60L * 1000L;
+
+    private static final int CHUNK = 20000;
+    private static final int INSERT_ROWS = 500;
+
+    /* How long, in ms, before we assume every ID up to one we have seen
+       has committed; comfortably longer than any transaction that
+       records observations. */
+    private static final long MARGIN = 5L * 60L * 1000L;
+
+    /**
+     * Get the ID of the last observation rolled up. Observations with
+     * IDs up to this may safely be purged.
+     */
+    public static long getLastId(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("select last_id from rollup_state");
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+    }
+
+    /**
+     * Roll up all observations not yet rolled up, as far as is safe (see
+     * above).
+     * @param conn      Connection, which must not be in auto-commit mode.
+     * @return          Number of observations rolled up.
+     */
+    public static long run(Connection conn) throws SQLException {
+        long total = 0L;
+        long lastId = getLastId(conn);
+
+        /* how far we may go, and how far the next run may */
+        long ceiling = lastId, maxId = 0L;
+        Timestamp now = null, noted = null;
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("select next_id, noted, now() from rollup_state");
+            if (rs.next()) {
+                ceiling = rs.getLong(1);
+                noted = rs.getTimestamp(2);
+                now = rs.getTimestamp(3);
+            }
+            rs = stmt.executeQuery("select max(id) from observations");
+            if (rs.next())
+                maxId = rs.getLong(1);
+        }
+        boolean settled = noted != null && now.getTime() - noted.getTime() >= MARGIN;
+        if (!settled)
+            ceiling = lastId;
+
+        while (ceiling > lastId) {
+            Map<Key, Sums> sums = new HashMap<Key, Sums>();
+            int n = 0;
+            try (PreparedStatement stmt = conn.prepareStatement("select " + Observation.COLUMNS + " from observations where observations.id > ? and observations.id <= ? order by observations.id limit ?")) {
+                stmt.setLong(1, lastId);
+                stmt.setLong(2, ceiling);
+                stmt.setInt(3, CHUNK);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    Observation o = Observation.fromResultSet(rs);
+                    sums.computeIfAbsent(new Key(o), k -> new Sums()).add(o);
+                    lastId = o.getId();
+                    n++;
+                }
+            }
+            if (n == 0)
+                break;
+            write(conn, sums);
+            try (PreparedStatement stmt = conn.prepareStatement("update rollup_state set last_id = ?")) {
+                stmt.setLong(1, lastId);
+                if (stmt.executeUpdate() == 0) {
+                    try (PreparedStatement stmt2 = conn.prepareStatement("insert into rollup_state (last_id) values (?)")) {
+                        stmt2.setLong(1, lastId);
+                        stmt2.executeUpdate();
+                    }
+                }
+            }
+            conn.commit();
+            total += n;
+            if (n < CHUNK)
+                break;
+        }
+
+        /* unless an unsettled note is waiting to settle, make a new one */
+        if (settled || noted == null) {
+            try (PreparedStatement stmt = conn.prepareStatement("update rollup_state set next_id = ?, noted = now()")) {
+                stmt.setLong(1, maxId);
+                if (stmt.executeUpdate() == 0) {
+                    try (PreparedStatement stmt2 = conn.prepareStatement("insert into rollup_state (last_id, next_id, noted) values (?, ?, now())")) {
+                        stmt2.setLong(1, lastId);
+                        stmt2.setLong(2, maxId);
+                        stmt2.executeUpdate();
+                    }
+                }
+            }
+            conn.commit();
+        }
+        return total;
+    }
+
+    /* Add a chunk's summaries to what's already there. */
+    private static void write(Connection conn, Map<Key, Sums> sums) throws SQLException {
+        List<Map.Entry<Key, Sums>> entries = new ArrayList<Map.Entry<Key, Sums>>(sums.entrySet());
+        for (int start=0; start<entries.size(); start+=INSERT_ROWS) {
+            int end = Math.min(entries.size(), start + INSERT_ROWS);
+            StringBuilder sb = new StringBuilder("insert into rollups (hour, lat_cell, lon_cell, band, count, wind_count, sum_u, sum_v, temp_count, sum_t, min_t, max_t) values ");
+            for (int i=start; i<end; i++)
+                sb.append(i == start ? "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            sb.append(" on duplicate key update count = count + values(count), wind_count = wind_count + values(wind_count), sum_u = sum_u + values(sum_u), sum_v = sum_v + values(sum_v), temp_count = temp_count + values(temp_count), sum_t = sum_t + values(sum_t), min_t = least(coalesce(min_t, values(min_t)), coalesce(values(min_t), min_t)), max_t = greatest(coalesce(max_t, values(max_t)), coalesce(values(max_t), max_t))");
+            try (PreparedStatement stmt = conn.prepareStatement(sb.toString())) {
+                int n = 1;
+                for (int i=start; i<end; i++) {
+                    Key k = entries.get(i).getKey();
+                    Sums s = entries.get(i).getValue();
+                    stmt.setInt(n++, (int) k.hour);
+                    stmt.setInt(n++, k.latCell);
+                    stmt.setInt(n++, k.lonCell);
+                    stmt.setInt(n++, k.band);
+                    stmt.setInt(n++, s.count);
+                    stmt.setInt(n++, s.windCount);
+                    stmt.setDouble(n++, s.sumU);
+                    stmt.setDouble(n++, s.sumV);
+                    stmt.setInt(n++, s.tempCount);
+                    stmt.setDouble(n++, s.sumT);
+                    if (s.tempCount == 0) {
+                        stmt.setNull(n++, Types.FLOAT);
+                        stmt.setNull(n++, Types.FLOAT);
+                    } else {
+                        stmt.setFloat(n++, s.minT);
+                        stmt.setFloat(n++, s.maxT);
+                    }
+                }
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Which grid cell contains the specified latitude or longitude?
+     */
+    public static int cell(double degrees) {
+        return (int) Math.floor(degrees / WindGrid.CELL_DEGREES);
+    }
+
+    /* Hour, cell and band of an observation. */
+    private static class Key {
+        final long hour;
+        final int latCell, lonCell, band;
+
+        Key(Observation o) {
+            hour = Math.floorDiv(o.getObserved(), HOUR);
+            latCell = cell(o.getLatitude());
+            lonCell = cell(o.getLongitude());
+            band = WindGrid.band(o.getAltitude());
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key k = (Key) other;
+            return hour == k.hour && latCell == k.latCell && lonCell == k.lonCell && band == k.band;
+        }
+
+        public int hashCode() {
+            int h = Long.hashCode(hour);
+            h = h * 31 + latCell;
+            h = h * 31 + lonCell;
+            return h * 31 + band;
+        }
+    }
+
+    /* Running sums for one key. */
+    private static class Sums {
+        int count = 0, windCount = 0, tempCount = 0;
+        double sumU = 0.0, sumV = 0.0, sumT = 0.0;
+        float minT = Float.MAX_VALUE, maxT = -Float.MAX_VALUE;
+
+        void add(Observation o) {
+            count++;
+            if (o.hasWind()) {
+                windCount++;
+                sumU += o.getWindU();
+                sumV += o.getWindV();
+            }
+            Float t = o.getTemperature();
+            if (t != null) {
+                tempCount++;
+                sumT += t;
+                minT = Math.min(minT, t);
+                maxT = Math.max(maxT, t);
+            }
+        }
+    }
+}
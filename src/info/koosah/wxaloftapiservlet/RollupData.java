@@ -0,0 +1,183 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.sql.*;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.TimeZone;
+import javax.json.*;
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the hourly rollups (see Rollup) for an area, which go back much
+ * further than raw observations do. Parameters: area=, from= and to=
+ * (ISO-8601 instants, to= defaults to now), altitude= (optional, selects
+ * a single band) and zone= (as for ObsData).
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class RollupData extends HttpServlet {
+    private static final long serialVersionUID = 8133407297316460152L;
+
+    private static final SimpleDateFormat LOCAL_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    private static final SimpleDateFormat UTC_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    static {
+        UTC_TIME.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+    private static final Logger LOGGER = Logger.getLogger(RollupData.class.getCanonicalName());
+
+    private static final long MAX_SPAN = 7L * 24L * Rollup.HOUR;
+
+    /**
+     * Process a GET request by returning the rollups for an area.
+     * @param req     HttpServletRequest
+     * @param resp    HttpServletResponse
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        /* get the mandatory area */
+        String rawArea = req.getParameter("area");
+        if (rawArea == null) {
+            LOGGER.log(Level.SEVERE, "Missing area= parameter");
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing area= parameter)");
+            return;
+        }
+        Areas.Area area = null;
+        try {
+            area = Areas.find(rawArea);
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to resolve area", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to resolve area)");
+            return;
+        }
+        if (area == null) {
+            LOGGER.log(Level.SEVERE, "Unknown area " + rawArea);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (unknown area)");
+            return;
+        }
+
+        /* get the time range and optional altitude */
+        String rawFrom = req.getParameter("from");
+        if (rawFrom == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing from= parameter)");
+            return;
+        }
+        long from = -1L, to = -1L;
+        Integer band = null;
+        try {
+            from = Instant.parse(rawFrom).toEpochMilli();
+            String rawTo = req.getParameter("to");
+            to = rawTo == null ? System.currentTimeMillis() : Instant.parse(rawTo).toEpochMilli();
+            String rawAltitude = req.getParameter("altitude");
+            if (rawAltitude != null)
+                band = WindGrid.band(Integer.parseInt(rawAltitude));
+        } catch (DateTimeParseException|NumberFormatException e) {
+            LOGGER.log(Level.SEVERE, "Invalid rollup parameter", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid time or altitude)");
+            return;
+        }
+        if (to - from > MAX_SPAN || to < from) {
+            LOGGER.log(Level.SEVERE, "Time range too long!");
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (excessive or negative time range)");
+            return;
+        }
+
+        /* determine time zone to use */
+        SimpleDateFormat dFormat = null;
+        String zone = req.getParameter("zone");
+        if (zone == null || "local".equals(zone)) {
+            dFormat = (SimpleDateFormat) LOCAL_TIME.clone();
+            dFormat.setTimeZone(TimeZone.getTimeZone(area.getTimezone()));
+        } else if ("UTC".equals(zone) || "GMT".equals(zone)) {
+            dFormat = (SimpleDateFormat) UTC_TIME.clone();
+        } else {
+            dFormat = (SimpleDateFormat) LOCAL_TIME.clone();
+            dFormat.setTimeZone(TimeZone.getTimeZone(zone));
+        }
+
+        /* the cells that might be in the area */
+        double dLat = Areas.RADIUS / Geo.KM_PER_DEGREE;
+        double dLon = Geo.lonDegrees(Areas.RADIUS, Math.abs(area.getLatitude()) + dLat);
+        String sql = "select hour, lat_cell, lon_cell, band, count, wind_count, sum_u, sum_v, temp_count, sum_t, min_t, max_t from rollups where hour >= ? and hour <= ? and lat_cell between ? and ? and lon_cell between ? and ?" +
+            (band == null ? "" : " and band = ?") + " order by hour, band";
+
+        /* get the rollups */
+        JsonArrayBuilder jaBuilder = Json.createArrayBuilder();
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, (int) Math.floorDiv(from, Rollup.HOUR));
+            stmt.setInt(2, (int) Math.floorDiv(to, Rollup.HOUR));
+            stmt.setInt(3, Rollup.cell(area.getLatitude() - dLat));
+            stmt.setInt(4, Rollup.cell(area.getLatitude() + dLat));
+            stmt.setInt(5, Rollup.cell(area.getLongitude() - dLon));
+            stmt.setInt(6, Rollup.cell(area.getLongitude() + dLon));
+            if (band != null)
+                stmt.setInt(7, band);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                double lat = (rs.getInt("lat_cell") + 0.5) * WindGrid.CELL_DEGREES;
+                double lon = (rs.getInt("lon_cell") + 0.5) * WindGrid.CELL_DEGREES;
+                if (!area.contains(lat, lon))
+                    continue;
+                JsonObjectBuilder joBuilder = Json.createObjectBuilder()
+                    .add("hour", dFormat.format(new java.util.Date(rs.getInt("hour") * Rollup.HOUR)))
+                    .add("latitude", lat)
+                    .add("longitude", lon)
+                    .add("altitude", rs.getInt("band") * WindGrid.BAND_FEET + WindGrid.BAND_FEET / 2)
+                    .add("count", rs.getInt("count"));
+                int windCount = rs.getInt("wind_count");
+                if (windCount == 0) {
+                    joBuilder.addNull("wind_speed");
+                    joBuilder.addNull("wind_dir");
+                } else {
+                    double u = rs.getDouble("sum_u") / windCount;
+                    double v = rs.getDouble("sum_v") / windCount;
+                    joBuilder.add("wind_speed", Math.round(Math.hypot(u, v)));
+                    joBuilder.add("wind_dir", Observation.direction(u, v));
+                }
+                int tempCount = rs.getInt("temp_count");
+                if (tempCount == 0) {
+                    joBuilder.addNull("temperature");
+                    joBuilder.addNull("temperature_min");
+                    joBuilder.addNull("temperature_max");
+                } else {
+                    joBuilder.add("temperature", Math.round(rs.getDouble("sum_t") / tempCount * 10.0) / 10.0);
+                    /* a hack to hide rounding errors */
+                    joBuilder.add("temperature_min", Double.parseDouble(Float.toString(rs.getFloat("min_t"))));
+                    joBuilder.add("temperature_max", Double.parseDouble(Float.toString(rs.getFloat("max_t"))));
+                }
+                jaBuilder.add(joBuilder);
+            }
+        } catch (ReadRouter.BusyException e) {
+            resp.setHeader("Retry-After", "30");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable (database busy)");
+            return;
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to get rollups", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to get rollups)");
+            return;
+        }
+        JsonObject result = Json.createObjectBuilder()
+            .add("area", area.getName())
+            .add("cell_degrees", WindGrid.CELL_DEGREES)
+            .add("band_feet", WindGrid.BAND_FEET)
+            .add("rollups", jaBuilder)
+            .build();
+
+        /* send back JSON here */
+        resp.setStatus(200);
+        resp.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.println(result.toString());
+        out.flush();
+    }
+
+    private Connection getConnection() throws NamingException, SQLException {
+        return ReadRouter.getConnection();
+    }
+}
@@ -0,0 +1,129 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.sql.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Support for the optional compact schema (see wxaloft_compact_schema.sql),
+ * in which observations live in obs_compact with latitude and longitude
+ * stored as scaled integers, frequency in kHz and the registration as an
+ * index into the registrations table. A view named observations decodes
+ * all this, so code that only reads observations need not care; only
+ * code that writes them, or that is hot enough to want to read the
+ * compact table directly, needs to ask which schema is in use.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Schema {
+    /** Scaled latitude and longitude units per degree. */
+    public static final double DEGREE_SCALE = 100000.0;
+
+    /** Stored frequency units (kHz) per MHz. */
+    public static final double FREQUENCY_SCALE = 1000.0;
+
+    private static volatile Boolean compact = null;
+    private static final ConcurrentHashMap<String, Integer> registrations = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Is the compact schema in use? Determined by whether the obs_compact
+     * table exists; checked once, as changing the schema requires a
+     * restart anyhow.
+     */
+    public static boolean isCompact(Connection conn) throws SQLException {
+        Boolean ret = compact;
+        if (ret == null) {
+            try (ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, "obs_compact", null)) {
+                ret = compact = rs.next();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Name of the table observations are inserted into and deleted from.
+     */
+    public static String observationsTable(Connection conn) throws SQLException {
+        return isCompact(conn) ? "obs_compact" : "observations";
+    }
+
+    /**
+     * DDL for the obs_ndx index on obs_area. In the compact schema the
+     * primary key already keeps (area, observation) pairs unique; in the
+     * original one, this index does.
+     */
+    public static String obsAreaIndex(Connection conn) throws SQLException {
+        return isCompact(conn) ?
+            "create index obs_ndx on obs_area (observation_id)" :
+            "create unique index obs_ndx on obs_area (observation_id, area_id)";
+    }
+
+    /**
+     * Column list for inserting into observationsTable. The values for
+     * frequency, source, latitude and longitude must be encoded with
+     * the methods below if the schema is compact.
+     */
+    public static String insertColumns(Connection conn) throws SQLException {
+        return "received, observed, frequency, client_id, altitude, wind_speed, wind_dir, temperature, " +
+            (isCompact(conn) ? "source_id" : "source") + ", latitude, longitude";
+    }
+
+    /**
+     * Encode degrees of latitude or longitude.
+     */
+    public static int degrees(double degrees) {
+        return (int) Math.round(degrees * DEGREE_SCALE);
+    }
+
+    /**
+     * Encode a frequency in MHz.
+     */
+    public static int frequency(double mhz) {
+        return (int) Math.round(mhz * FREQUENCY_SCALE);
+    }
+
+    /**
+     * How to decode a column of obs_compact.
+     * @param column    Column name.
+     * @return          What to divide the stored value by, or 0 if it
+     *                  is stored as-is.
+     */
+    public static double scale(String column) {
+        switch (column) {
+        case "latitude":
+        case "longitude":
+            return DEGREE_SCALE;
+        case "frequency":
+            return FREQUENCY_SCALE;
+        default:
+            return 0.0;
+        }
+    }
+
+    /**
+     * Encode an aircraft registration, adding it to the registrations
+     * table if need be.
+     * @param conn      Connection to use if the registration is not cached.
+     * @param reg       Registration, may be null.
+     * @return          Registration ID, or null if reg was null.
+     */
+    public static Integer registration(Connection conn, String reg) throws SQLException {
+        if (reg == null)
+            return null;
+        Integer ret = registrations.get(reg);
+        if (ret != null)
+            return ret;
+        try (PreparedStatement stmt = conn.prepareStatement("insert ignore into registrations (reg) values (?)")) {
+            stmt.setString(1, reg);
+            stmt.executeUpdate();
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("select id from registrations where reg = ?")) {
+            stmt.setString(1, reg);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next())
+                throw new SQLException("registration " + reg + " vanished");
+            ret = rs.getInt(1);
+        }
+        registrations.put(reg, ret);
+        return ret;
+    }
+}
@@ -0,0 +1,121 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.NamingException;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Opens the SegmentStore when the webapp starts, catches it up from the
+ * database in the background, and from then on evicts old segments and
+ * flushes new rows to disk every so often. It keeps ObsFeed.SEED_WINDOW
+ * of observations, which is all seeding reads. The segment-dir context
+ * parameter says where; the default is a directory in Tomcat's base
+ * directory, since the webapp's work directory is emptied on redeploy,
+ * which would defeat the purpose.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class SegmentKeeper implements ServletContextListener {
+    private static final Logger LOGGER = Logger.getLogger(SegmentKeeper.class.getCanonicalName());
+
+    /* How often to evict and flush, in ms. */
+    private static final long INTERVAL = 60000L;
+
+    private ScheduledExecutorService keeper;
+
+    /**
+     * Open the store and start catching up.
+     */
+    public void contextInitialized(ServletContextEvent sce) {
+        ServletContext ctx = sce.getServletContext();
+        String rawDir = ctx.getInitParameter("segment-dir");
+        String base = System.getProperty("catalina.base");
+        File dir = null;
+        if (rawDir != null && !rawDir.trim().isEmpty())
+            dir = new File(rawDir.trim());
+        else if (base != null)
+            dir = new File(base, "wxaloft-segments");
+        else {
+            LOGGER.log(Level.WARNING, "No segment-dir and no catalina.base; segment store disabled");
+            return;
+        }
+        try {
+            SegmentStore.open(dir, ObsFeed.SEED_WINDOW);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to open segment store; disabled", e);
+            return;
+        }
+        keeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "segments");
+            t.setDaemon(true);
+            return t;
+        });
+        keeper.execute(this::backfill);
+        keeper.scheduleWithFixedDelay(this::maintain, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop, and make sure everything is on disk.
+     */
+    public void contextDestroyed(ServletContextEvent sce) {
+        if (keeper != null)
+            keeper.shutdownNow();
+        SegmentStore.close();
+    }
+
+    /* Add everything we missed while not running. Retried on failure. */
+    private void backfill() {
+        SegmentStore store = SegmentStore.getInstance();
+        if (store == null)
+            return;
+        long t0 = System.currentTimeMillis();
+        int n = 0;
+        try (Connection conn = getConnection()) {
+            long maxId = 0L;
+            try (Statement stmt = conn.createStatement()) {
+                ResultSet rs = stmt.executeQuery("select max(id) from observations");
+                if (rs.next())
+                    maxId = rs.getLong(1);
+            }
+            try (PreparedStatement stmt = conn.prepareStatement("select " + Observation.COLUMNS + " from observations where observed > ? and id > ? and id <= ?", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                stmt.setFetchSize(Integer.MIN_VALUE);
+                stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() - store.getRetention()));
+                stmt.setLong(2, store.getCompleteThrough());
+                stmt.setLong(3, maxId);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    store.backfill(Observation.fromResultSet(rs));
+                    n++;
+                }
+            }
+            store.backfilled(maxId);
+        } catch (NamingException|SQLException|IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to backfill segment store, will retry", e);
+            keeper.schedule(this::backfill, INTERVAL, TimeUnit.MILLISECONDS);
+            return;
+        }
+        LOGGER.log(Level.INFO, String.format("Segment store caught up with %d observation%s in %d ms",
+            n, n==1? "": "s", System.currentTimeMillis() - t0));
+    }
+
+    private void maintain() {
+        SegmentStore store = SegmentStore.getInstance();
+        if (store == null)
+            return;
+        store.evict();
+        store.force();
+    }
+
+    private Connection getConnection() throws NamingException, SQLException {
+        return ReadRouter.getConnection();
+    }
+}
@@ -0,0 +1,460 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.*;
+
+/**
+ * A local store of recent observations in append-only, memory-mapped
+ * columnar segment files, one (or more, if it fills up) per hour of
+ * observation time. Each segment has a header summarizing the times and
+ * area it covers, so scans can skip whole segments, and each column is a
+ * fixed-width array, so scans read just the columns they need, off-heap.
+ * Latitude and longitude are stored in 1e-5 degree, frequency in kHz and
+ * temperature in tenths of a degree, as in the compact schema.
+ *
+ * It exists so that seeding (see ObsFeed) after a restart need not read
+ * everything back from MySQL, so it keeps observations for just as long
+ * as seeding wants them, ObsFeed.SEED_WINDOW. New observations are
+ * appended by ObsFeed's tail of the observations table, not by
+ * ReceiveAcars, so the store holds those received by every node.
+ *
+ * The store survives restarts. The state file records the observation ID
+ * through which it is known to hold every observation (within the
+ * retention period); SegmentKeeper fills in anything after that from
+ * MySQL in the background when we start, which on a first start means
+ * rebuilding the whole thing.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class SegmentStore {
+    private static final Logger LOGGER = Logger.getLogger(SegmentStore.class.getCanonicalName());
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** Span of one segment, in ms. */
+    public static final long HOUR = 60L * 60L * 1000L;
+
+    /* Rows per segment file. */
+    private static final int CAPACITY = 65536;
+
+    /* Header layout. */
+    private static final int MAGIC = 0x57585347;
+    private static final int VERSION = 1;
+    private static final int H_MAGIC = 0, H_VERSION = 4, H_HOUR = 8, H_COUNT = 16,
+        H_MIN_TIME = 24, H_MAX_TIME = 32, H_MIN_LAT = 40, H_MAX_LAT = 44,
+        H_MIN_LON = 48, H_MAX_LON = 52, H_MAX_ID = 56;
+    private static final int HEADER = 128;
+
+    /* Column widths, and where each column starts. */
+    private static final int SOURCE_WIDTH = 7;
+    private static final int C_ID = HEADER;
+    private static final int C_OBSERVED = C_ID + 8 * CAPACITY;
+    private static final int C_RECEIVED = C_OBSERVED + 4 * CAPACITY;
+    private static final int C_LAT = C_RECEIVED + 4 * CAPACITY;
+    private static final int C_LON = C_LAT + 4 * CAPACITY;
+    private static final int C_ALT = C_LON + 4 * CAPACITY;
+    private static final int C_WSPD = C_ALT + 4 * CAPACITY;
+    private static final int C_WDIR = C_WSPD + 2 * CAPACITY;
+    private static final int C_TEMP = C_WDIR + 2 * CAPACITY;
+    private static final int C_CLIENT = C_TEMP + 2 * CAPACITY;
+    private static final int C_FREQ = C_CLIENT + 4 * CAPACITY;
+    private static final int C_SOURCE = C_FREQ + 4 * CAPACITY;
+    private static final int SIZE = C_SOURCE + SOURCE_WIDTH * CAPACITY;
+
+    /* Marks a missing short value. */
+    private static final short NONE = Short.MIN_VALUE;
+
+    private static volatile SegmentStore instance = null;
+
+    private final File dir;
+    private final long retention;
+    private final ConcurrentSkipListMap<Long, CopyOnWriteArrayList<Segment>> segments = new ConcurrentSkipListMap<Long, CopyOnWriteArrayList<Segment>>();
+    private volatile long completeThrough;
+    private volatile Set<Long> present;
+
+    /**
+     * Get the store, or null if it is not open.
+     */
+    public static SegmentStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Open the store.
+     * @param dir       Directory to keep it in.
+     * @param retention How long to keep observations, in ms.
+     */
+    public static synchronized SegmentStore open(File dir, long retention) throws IOException {
+        if (instance == null)
+            instance = new SegmentStore(dir, retention);
+        return instance;
+    }
+
+    /**
+     * Close the store, making sure everything has been written.
+     */
+    public static synchronized void close() {
+        if (instance == null)
+            return;
+        for (List<Segment> l : instance.segments.values())
+            for (Segment s : l)
+                s.buf.force();
+        instance = null;
+    }
+
+    private SegmentStore(File dir, long retention) throws IOException {
+        this.dir = dir;
+        this.retention = retention;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("unable to create " + dir);
+        completeThrough = readState();
+
+        /* note what's there beyond the point we know is complete, so
+           backfilling doesn't add it twice */
+        present = ConcurrentHashMap.newKeySet();
+        long oldest = System.currentTimeMillis() - retention;
+        File[] files = dir.listFiles((d, name) -> name.startsWith("seg-") && name.endsWith(".dat"));
+        for (File f : files == null ? new File[0] : files) {
+            Segment s = null;
+            try {
+                s = new Segment(f);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Discarding bad segment " + f, e);
+                f.delete();
+                continue;
+            }
+            if (s.hour + HOUR <= oldest) {
+                f.delete();
+                continue;
+            }
+            segments.computeIfAbsent(s.hour / HOUR, k -> new CopyOnWriteArrayList<Segment>()).add(s);
+            for (int i=0; i<s.count; i++) {
+                long id = s.buf.getLong(C_ID + 8 * i);
+                if (id > completeThrough)
+                    present.add(id);
+            }
+        }
+    }
+
+    /**
+     * How long observations are kept, in ms.
+     */
+    public long getRetention() {
+        return retention;
+    }
+
+    /**
+     * ID through which we are known to have every observation.
+     */
+    public long getCompleteThrough() {
+        return completeThrough;
+    }
+
+    /**
+     * Are we still catching up?
+     */
+    public boolean isBackfilling() {
+        return present != null;
+    }
+
+    /**
+     * Add a newly-recorded observation, unless catching up already got
+     * it. While catching up, whichever of this and backfill adds an ID
+     * to present first is the one that stores the observation.
+     */
+    public void append(Observation o) {
+        Set<Long> p = present;
+        if (p != null) {
+            if (!p.add(o.getId()))
+                return;
+        } else if (o.getId() <= completeThrough) {
+            return;
+        }
+        add(o);
+    }
+
+    /**
+     * Add an observation read from the database while catching up,
+     * unless we already have it.
+     */
+    public void backfill(Observation o) {
+        Set<Long> p = present;
+        if (p != null && p.add(o.getId()))
+            add(o);
+    }
+
+    /**
+     * Note that we have caught up. (completeThrough is set before present
+     * is cleared, so append never sees neither.)
+     * @param through   ID through which we now have every observation.
+     */
+    public void backfilled(long through) throws IOException {
+        completeThrough = through;
+        writeState(through);
+        present = null;
+    }
+
+    private void add(Observation o) {
+        long now = System.currentTimeMillis();
+        if (o.getObserved() <= now - retention || o.getObserved() > now + HOUR)
+            return;
+        long key = Math.floorDiv(o.getObserved(), HOUR);
+        CopyOnWriteArrayList<Segment> l = segments.computeIfAbsent(key, k -> new CopyOnWriteArrayList<Segment>());
+        try {
+            while (true) {
+                Segment last = l.isEmpty() ? null : l.get(l.size() - 1);
+                if (last != null && last.append(o))
+                    return;
+                synchronized (l) {
+                    if (l.isEmpty() || l.get(l.size() - 1) == last)
+                        l.add(new Segment(new File(dir, String.format("seg-%d-%d.dat", key, l.size())), key * HOUR));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to add segment", e);
+        }
+    }
+
+    /**
+     * Drop segments older than the retention period.
+     */
+    public void evict() {
+        long oldest = Math.floorDiv(System.currentTimeMillis() - retention, HOUR);
+        Map.Entry<Long, CopyOnWriteArrayList<Segment>> first;
+        while ((first = segments.firstEntry()) != null && first.getKey() < oldest) {
+            segments.remove(first.getKey());
+            for (Segment s : first.getValue())
+                s.file.delete();
+        }
+    }
+
+    /**
+     * Make sure everything has been written to disk.
+     */
+    public void force() {
+        for (List<Segment> l : segments.values())
+            for (Segment s : l)
+                s.buf.force();
+    }
+
+    /**
+     * Find all observations in a bounding box, time window and altitude
+     * range. Bounds are inclusive; boxes crossing the antimeridian are
+     * not supported.
+     * @param south     Southern boundary, degrees.
+     * @param west      Western boundary, degrees.
+     * @param north     Northern boundary, degrees.
+     * @param east      Eastern boundary, degrees.
+     * @param since     Earliest observation time, ms.
+     * @param until     Latest observation time, ms.
+     * @param minAlt    Lowest altitude, feet.
+     * @param maxAlt    Highest altitude, feet.
+     * @param sink      Where to send the observations found.
+     */
+    public void scan(double south, double west, double north, double east,
+      long since, long until, int minAlt, int maxAlt, Consumer<Observation> sink) {
+        int s = Schema.degrees(south), w = Schema.degrees(west);
+        int n = Schema.degrees(north), e = Schema.degrees(east);
+        for (List<Segment> l : segments.subMap(Math.floorDiv(since, HOUR), true, Math.floorDiv(until, HOUR), true).values())
+            for (Segment seg : l)
+                seg.scan(s, w, n, e, since, until, minAlt, maxAlt, sink);
+    }
+
+    /**
+     * Report on the store.
+     * @return          JSON object.
+     */
+    public JsonObject toJson() {
+        int files = 0;
+        long rows = 0L;
+        for (List<Segment> l : segments.values()) {
+            for (Segment s : l) {
+                files++;
+                rows += s.count;
+            }
+        }
+        return Json.createObjectBuilder()
+            .add("segments", files)
+            .add("rows", rows)
+            .add("complete_through", completeThrough)
+            .add("backfilling", isBackfilling())
+            .build();
+    }
+
+    private long readState() throws IOException {
+        File f = new File(dir, "state");
+        if (!f.exists())
+            return 0L;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return in.readLong();
+        } catch (EOFException e) {
+            return 0L;
+        }
+    }
+
+    private void writeState(long through) throws IOException {
+        File tmp = new File(dir, "state.tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp); DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeLong(through);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(new File(dir, "state")))
+            throw new IOException("unable to replace state file");
+    }
+
+    /* One segment file. Appends are serialized; readers take no lock,
+       relying on the volatile write of count to publish the rows. The
+       count in the header is written after the row, so a crash can at
+       worst lose the row being written. */
+    private static class Segment {
+        final File file;
+        final long hour;
+        final MappedByteBuffer buf;
+        volatile int count;
+        long minTime, maxTime;
+        volatile int minLat, maxLat, minLon, maxLon;
+
+        /* open an existing segment */
+        Segment(File file) throws IOException {
+            this.file = file;
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (ch.size() != SIZE)
+                    throw new IOException("wrong size");
+                buf = ch.map(FileChannel.MapMode.READ_WRITE, 0L, SIZE);
+            }
+            if (buf.getInt(H_MAGIC) != MAGIC || buf.getInt(H_VERSION) != VERSION)
+                throw new IOException("not a segment");
+            hour = buf.getLong(H_HOUR);
+            count = Math.min(CAPACITY, Math.max(0, buf.getInt(H_COUNT)));
+            minTime = buf.getLong(H_MIN_TIME);
+            maxTime = buf.getLong(H_MAX_TIME);
+            minLat = buf.getInt(H_MIN_LAT);
+            maxLat = buf.getInt(H_MAX_LAT);
+            minLon = buf.getInt(H_MIN_LON);
+            maxLon = buf.getInt(H_MAX_LON);
+        }
+
+        /* make a new, empty one */
+        Segment(File file, long hour) throws IOException {
+            this.file = file;
+            this.hour = hour;
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buf = ch.map(FileChannel.MapMode.READ_WRITE, 0L, SIZE);
+            }
+            count = 0;
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+            minLat = minLon = Integer.MAX_VALUE;
+            maxLat = maxLon = Integer.MIN_VALUE;
+            buf.putInt(H_VERSION, VERSION);
+            buf.putLong(H_HOUR, hour);
+            buf.putInt(H_COUNT, 0);
+            writeSummary(0L);
+            buf.putInt(H_MAGIC, MAGIC);
+        }
+
+        private void writeSummary(long id) {
+            buf.putLong(H_MIN_TIME, minTime);
+            buf.putLong(H_MAX_TIME, maxTime);
+            buf.putInt(H_MIN_LAT, minLat);
+            buf.putInt(H_MAX_LAT, maxLat);
+            buf.putInt(H_MIN_LON, minLon);
+            buf.putInt(H_MAX_LON, maxLon);
+            if (id > buf.getLong(H_MAX_ID))
+                buf.putLong(H_MAX_ID, id);
+        }
+
+        synchronized boolean append(Observation o) {
+            int i = count;
+            if (i >= CAPACITY)
+                return false;
+            int lat = Schema.degrees(o.getLatitude()), lon = Schema.degrees(o.getLongitude());
+            buf.putLong(C_ID + 8 * i, o.getId());
+            buf.putInt(C_OBSERVED + 4 * i, (int) (o.getObserved() - hour));
+            buf.putInt(C_RECEIVED + 4 * i, (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, (o.getReceived() - o.getObserved()) / 1000L)));
+            buf.putInt(C_LAT + 4 * i, lat);
+            buf.putInt(C_LON + 4 * i, lon);
+            buf.putInt(C_ALT + 4 * i, o.getAltitude());
+            buf.putShort(C_WSPD + 2 * i, o.getWindSpeed() == null ? NONE : o.getWindSpeed());
+            buf.putShort(C_WDIR + 2 * i, o.getWindDirection() == null ? NONE : o.getWindDirection());
+            buf.putShort(C_TEMP + 2 * i, o.getTemperature() == null ? NONE : (short) Math.round(o.getTemperature() * 10.0f));
+            buf.putInt(C_CLIENT + 4 * i, o.getClientId());
+            buf.putInt(C_FREQ + 4 * i, Schema.frequency(o.getFrequency()));
+            byte[] source = o.getSource() == null ? new byte[0] : o.getSource().getBytes(ASCII);
+            for (int j=0; j<SOURCE_WIDTH; j++)
+                buf.put(C_SOURCE + SOURCE_WIDTH * i + j, j < source.length ? source[j] : 0);
+
+            /* widen the summary before publishing the row, so a reader
+               never prunes a segment it should have scanned */
+            minTime = Math.min(minTime, o.getObserved());
+            maxTime = Math.max(maxTime, o.getObserved());
+            minLat = Math.min(minLat, lat);
+            maxLat = Math.max(maxLat, lat);
+            minLon = Math.min(minLon, lon);
+            maxLon = Math.max(maxLon, lon);
+            writeSummary(o.getId());
+            buf.putInt(H_COUNT, i + 1);
+            count = i + 1;
+            return true;
+        }
+
+        void scan(int south, int west, int north, int east, long since, long until,
+          int minAlt, int maxAlt, Consumer<Observation> sink) {
+            int n = count;
+            if (n == 0 || maxLat < south || minLat > north || maxLon < west || minLon > east)
+                return;
+            ByteBuffer b = buf;
+            int from = (int) Math.max(Integer.MIN_VALUE, since - hour);
+            int to = (int) Math.min(Integer.MAX_VALUE, until - hour);
+            for (int i=0; i<n; i++) {
+                int t = b.getInt(C_OBSERVED + 4 * i);
+                if (t < from || t > to)
+                    continue;
+                int lat = b.getInt(C_LAT + 4 * i);
+                if (lat < south || lat > north)
+                    continue;
+                int lon = b.getInt(C_LON + 4 * i);
+                if (lon < west || lon > east)
+                    continue;
+                int alt = b.getInt(C_ALT + 4 * i);
+                if (alt < minAlt || alt > maxAlt)
+                    continue;
+                sink.accept(row(b, i, t, lat, lon, alt));
+            }
+        }
+
+        private Observation row(ByteBuffer b, int i, int t, int lat, int lon, int alt) {
+            long observed = hour + t;
+            short ws = b.getShort(C_WSPD + 2 * i);
+            short wd = b.getShort(C_WDIR + 2 * i);
+            short temp = b.getShort(C_TEMP + 2 * i);
+            byte[] raw = new byte[SOURCE_WIDTH];
+            int len = 0;
+            while (len < SOURCE_WIDTH && (raw[len] = b.get(C_SOURCE + SOURCE_WIDTH * i + len)) != 0)
+                len++;
+            return new Observation(b.getLong(C_ID + 8 * i),
+                observed + b.getInt(C_RECEIVED + 4 * i) * 1000L, observed,
+                b.getInt(C_FREQ + 4 * i) / Schema.FREQUENCY_SCALE,
+                b.getInt(C_CLIENT + 4 * i), alt,
+                ws == NONE ? null : ws, wd == NONE ? null : wd,
+                temp == NONE ? null : temp / 10.0f,
+                len == 0 ? null : new String(raw, 0, len, ASCII),
+                lat / Schema.DEGREE_SCALE, lon / Schema.DEGREE_SCALE);
+        }
+    }
+}
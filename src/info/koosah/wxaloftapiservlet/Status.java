@@ -0,0 +1,50 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import javax.json.*;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the internal state of this node as JSON, for monitoring, and
+ * whether it is ready to take traffic.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Status extends HttpServlet {
+    private static final long serialVersionUID = 2280749251938473127L;
+
+    /**
+     * Process a GET request by returning status information. When called
+     * as /Ready, this is just whether warm-up is complete, with a status
+     * of 503 if it is not, for use by load balancers.
+     * @param req     HttpServletRequest
+     * @param resp    HttpServletResponse
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        JsonObject result = null;
+        if ("/Ready".equals(req.getServletPath())) {
+            result = Warmup.toJson();
+            resp.setStatus(Warmup.isReady() ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        } else {
+            JsonObjectBuilder builder = Json.createObjectBuilder()
+                .add("warmup", Warmup.toJson())
+                .add("reads", ReadRouter.toJson())
+                .add("breaker", Breaker.getInstance().toJson());
+            Object limiter = getServletContext().getAttribute(RateLimiter.ATTRIBUTE);
+            if (limiter instanceof RateLimiter)
+                builder.add("admission", ((RateLimiter) limiter).toJson());
+            SegmentStore store = SegmentStore.getInstance();
+            if (store != null)
+                builder.add("segments", store.toJson());
+            result = builder.build();
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+        resp.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.println(result.toString());
+        out.flush();
+    }
+}
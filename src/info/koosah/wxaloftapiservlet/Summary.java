@@ -0,0 +1,147 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Summary statistics for each area and each client over the last hour,
+ * maintained as observations arrive so that status pages need not count
+ * rows in the database. ObsFeed feeds this from the database, so the
+ * figures cover every node, not just this one. Counts are kept in
+ * per-minute buckets, so the window slides a minute at a time. Receive
+ * times come from the receivers' clocks, so any in the future are taken
+ * to be now.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Summary {
+    /** Length of the window, in minutes. */
+    public static final int MINUTES = 60;
+
+    private static final long MINUTE = 60L * 1000L;
+    private static final long WINDOW = MINUTES * MINUTE;
+    private static final Summary INSTANCE = new Summary();
+
+    private final ConcurrentHashMap<Integer, AreaStats> areas = new ConcurrentHashMap<Integer, AreaStats>();
+    private final ConcurrentHashMap<Integer, Stats> clients = new ConcurrentHashMap<Integer, Stats>();
+
+    /**
+     * Get the statistics shared by all servlets.
+     */
+    public static Summary getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Count an observation against its client and an area it is in.
+     */
+    public void add(int areaId, Observation obs) {
+        AreaStats a = areas.computeIfAbsent(areaId, k -> new AreaStats());
+        a.add(obs);
+        a.receivers.merge(obs.getClientId(), received(obs), Math::max);
+    }
+
+    /**
+     * Count an observation against its client.
+     */
+    public void add(Observation obs) {
+        clients.computeIfAbsent(obs.getClientId(), k -> new Stats()).add(obs);
+    }
+
+    /**
+     * Get the statistics for an area.
+     * @return          Statistics, or null if it has seen nothing.
+     */
+    public AreaStats getArea(int areaId) {
+        return areas.get(areaId);
+    }
+
+    /**
+     * Get the statistics for every client that has sent us anything.
+     */
+    public Map<Integer, Stats> getClients() {
+        return clients;
+    }
+
+    /**
+     * Counts for an area or a client.
+     */
+    public static class Stats {
+        private final Bucket[] buckets = new Bucket[MINUTES];
+        private final LongAccumulator latest = new LongAccumulator(Math::max, 0L);
+
+        Stats() {
+            for (int i=0; i<MINUTES; i++)
+                buckets[i] = new Bucket();
+        }
+
+        void add(Observation obs) {
+            latest.accumulate(obs.getObserved());
+            long minute = received(obs) / MINUTE;
+            if (minute <= System.currentTimeMillis() / MINUTE - MINUTES)
+                return;
+            Bucket b = buckets[(int) (minute % MINUTES)];
+            if (b.minute != minute) {
+                synchronized (b) {
+                    /* a late arrival for a minute already recycled is lost */
+                    if (b.minute > minute)
+                        return;
+                    if (b.minute < minute) {
+                        b.count.reset();
+                        b.minute = minute;
+                    }
+                }
+            }
+            b.count.increment();
+        }
+
+        /**
+         * Observations received in the last MINUTES minutes.
+         */
+        public long getCount() {
+            long oldest = System.currentTimeMillis() / MINUTE - MINUTES;
+            long ret = 0L;
+            for (Bucket b : buckets)
+                if (b.minute > oldest)
+                    ret += b.count.sum();
+            return ret;
+        }
+
+        /**
+         * Latest observation time ever seen, in ms, or 0 if none.
+         */
+        public long getLatest() {
+            return latest.get();
+        }
+    }
+
+    /**
+     * Counts for an area, plus the receivers active in it.
+     */
+    public static class AreaStats extends Stats {
+        private final ConcurrentHashMap<Integer, Long> receivers = new ConcurrentHashMap<Integer, Long>();
+
+        /**
+         * Number of clients that have sent observations in this area in
+         * the last MINUTES minutes.
+         */
+        public int getReceivers() {
+            long oldest = System.currentTimeMillis() - WINDOW;
+            receivers.values().removeIf(t -> t <= oldest);
+            return receivers.size();
+        }
+    }
+
+    /* When an observation was received, as best we can tell. */
+    private static long received(Observation obs) {
+        return Math.min(obs.getReceived(), System.currentTimeMillis());
+    }
+
+    /* One minute's count. */
+    private static class Bucket {
+        volatile long minute = -1L;
+        final LongAdder count = new LongAdder();
+    }
+}
@@ -0,0 +1,104 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.TimeZone;
+import javax.json.*;
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves summary statistics for the last hour, per area and per client,
+ * for status pages. These are maintained in memory as observations
+ * arrive, so this never queries the observations table except once at
+ * startup, to seed them.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class SummaryData extends HttpServlet {
+    private static final long serialVersionUID = -4409375208133712653L;
+
+    private static final SimpleDateFormat UTC_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    static {
+        UTC_TIME.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+    private static final Logger LOGGER = Logger.getLogger(SummaryData.class.getCanonicalName());
+
+    /**
+     * Seed the statistics from the database, so that they are not empty
+     * after a restart.
+     */
+    public void init() throws ServletException {
+        ObsFeed.seed();
+    }
+
+    /**
+     * Process a GET request by returning the statistics.
+     * @param req     HttpServletRequest
+     * @param resp    HttpServletResponse
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        SimpleDateFormat dFormat = (SimpleDateFormat) UTC_TIME.clone();
+        Summary summary = Summary.getInstance();
+
+        /* areas */
+        JsonArrayBuilder areas = Json.createArrayBuilder();
+        try {
+            for (Areas.Area a : Areas.get()) {
+                Summary.AreaStats s = summary.getArea(a.getId());
+                JsonObjectBuilder joBuilder = Json.createObjectBuilder()
+                    .add("id", a.getId())
+                    .add("name", a.getName());
+                if (s == null) {
+                    joBuilder.add("count", 0).add("receivers", 0).addNull("latest");
+                } else {
+                    joBuilder.add("count", s.getCount()).add("receivers", s.getReceivers());
+                    addTime(joBuilder, "latest", s.getLatest(), dFormat);
+                }
+                areas.add(joBuilder);
+            }
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to get areas", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to get areas)");
+            return;
+        }
+
+        /* clients, in order */
+        JsonArrayBuilder clients = Json.createArrayBuilder();
+        for (Map.Entry<Integer, Summary.Stats> e : new TreeMap<Integer, Summary.Stats>(summary.getClients()).entrySet()) {
+            JsonObjectBuilder joBuilder = Json.createObjectBuilder()
+                .add("id", e.getKey())
+                .add("count", e.getValue().getCount());
+            addTime(joBuilder, "latest", e.getValue().getLatest(), dFormat);
+            clients.add(joBuilder);
+        }
+
+        JsonObject result = Json.createObjectBuilder()
+            .add("minutes", Summary.MINUTES)
+            .add("areas", areas)
+            .add("clients", clients)
+            .build();
+
+        /* send back JSON here */
+        resp.setStatus(200);
+        resp.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.println(result.toString());
+        out.flush();
+    }
+
+    private void addTime(JsonObjectBuilder joBuilder, String name, long time, SimpleDateFormat dFormat) {
+        if (time == 0L)
+            joBuilder.addNull(name);
+        else
+            joBuilder.add(name, dFormat.format(new java.util.Date(time)));
+    }
+}
@@ -0,0 +1,96 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.util.HashSet;
+
+/**
+ * Decimates a stream of observations for map rendering. Fed newest
+ * first, it accepts only the first (i.e. newest) observation in each
+ * lat/long cell and/or altitude band, and at most a maximum number of
+ * observations overall. A single pass, with memory proportional to the
+ * number of observations accepted.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Thinner {
+    /** Default depth of an altitude band, in feet. */
+    public static final int DEFAULT_BAND = 1000;
+
+    /** Smallest cell size, in degrees; any smaller and cell keys could collide. */
+    public static final double MIN_RESOLUTION = 0.001;
+
+    private final double degrees;
+    private final int band;
+    private final int maxPoints;
+    private final HashSet<Long> seen = new HashSet<Long>();
+    private int accepted = 0;
+
+    /**
+     * Constructor.
+     * @param degrees   Cell size in degrees, or 0 for no spatial thinning.
+     * @param band      Altitude band depth in feet, or 0 for no thinning
+     *                  by altitude.
+     * @param maxPoints Maximum observations to accept, or 0 for no limit.
+     */
+    public Thinner(double degrees, int band, int maxPoints) {
+        if (degrees < 0.0 || (degrees > 0.0 && degrees < MIN_RESOLUTION) || band < 0 || maxPoints < 0)
+            throw new IllegalArgumentException("invalid thinning parameters");
+        this.degrees = degrees;
+        this.band = band;
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * Should the next observation be kept?
+     */
+    public boolean accept(double latitude, double longitude, int altitude) {
+        if (maxPoints > 0 && accepted >= maxPoints)
+            return false;
+        if (degrees > 0.0 || band > 0) {
+            long lat = degrees > 0.0 ? (long) Math.floor(latitude / degrees) & 0xfffffL : 0L;
+            long lon = degrees > 0.0 ? (long) Math.floor(longitude / degrees) & 0xfffffL : 0L;
+            long alt = band > 0 ? Math.floorDiv(altitude, band) & 0xffffffL : 0L;
+            if (!seen.add((lat << 44) | (lon << 24) | alt))
+                return false;
+        }
+        accepted++;
+        return true;
+    }
+
+    /**
+     * Is there any point in reading more observations?
+     */
+    public boolean full() {
+        return maxPoints > 0 && accepted >= maxPoints;
+    }
+
+    /**
+     * The settings, in a canonical form; two thinners with the same
+     * settings give the same string, however they were requested.
+     */
+    public String toString() {
+        return "resolution=" + degrees + "&band=" + band + "&maxPoints=" + maxPoints;
+    }
+
+    /**
+     * Make a thinner from the resolution=, band= and maxPoints= request
+     * parameters. With resolution=, band= defaults to DEFAULT_BAND; band=
+     * alone keeps the newest observation in each altitude band.
+     * @return          A Thinner, or null if no thinning was requested.
+     * @throws IllegalArgumentException on bad parameters.
+     */
+    public static Thinner fromParameters(String resolution, String band, String maxPoints) {
+        if (resolution == null && band == null && maxPoints == null)
+            return null;
+        int b = 0;
+        if (band != null) {
+            b = Integer.parseInt(band);
+            if (b <= 0)
+                throw new IllegalArgumentException("band must be positive");
+        } else if (resolution != null) {
+            b = DEFAULT_BAND;
+        }
+        return new Thinner(
+            resolution == null ? 0.0 : Double.parseDouble(resolution),
+            b, maxPoints == null ? 0 : Integer.parseInt(maxPoints));
+    }
+}
@@ -0,0 +1,188 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.TimeZone;
+import javax.json.*;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves observations as slippy-map tiles, /tiles/{z}/{x}/{y}, for a
+ * time bucket aligned to fixed boundaries, so that every viewer asks
+ * for the same URLs and caches between us and them can do their job.
+ * Parameters: window= (bucket length, a multiple of ten minutes; default
+ * one hour), bucket= (start of the bucket as an ISO-8601 instant; default
+ * the current one) and the thinning parameters ObsData takes. Without
+ * those, tiles are thinned to TILE_CELLS cells across. Times are always
+ * UTC. Tiles are built from ObsIndex, so only buckets within its
+ * retention period are available. ObsIndex is fed by ObsFeed's tail of
+ * the observations table, so tiles cover observations received by every
+ * node, a second or two after they are recorded. A bucket's tiles are
+ * only cached for long once the bucket is closed and ObsIndex is known
+ * to hold all of it (see ObsFeed.isComplete); until then, the index may
+ * be missing some observations, e.g. just after a restart or while the
+ * tail is catching up.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Tiles extends HttpServlet {
+    private static final long serialVersionUID = -2670316480740393374L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final SimpleDateFormat UTC_TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    static {
+        UTC_TIME.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+    private static final Logger LOGGER = Logger.getLogger(Tiles.class.getCanonicalName());
+
+    private static final String DEFAULT_WINDOW = "PT1H";
+    private static final int MAX_ZOOM = 20;
+    private static final int TILE_CELLS = 64;
+
+    /* How long after a bucket ends we still expect late observations. */
+    private static final long GRACE = 15L * 60L * 1000L;
+
+    /* Cache lifetimes, in seconds, for buckets that may still change and
+       for those that are closed and complete. */
+    private static final int OPEN_MAX_AGE = 30;
+    private static final int CLOSED_MAX_AGE = 24 * 60 * 60;
+
+    /**
+     * Seed the index from the database, so that it is not empty after a
+     * restart.
+     */
+    public void init() throws ServletException {
+        ObsFeed.seed();
+    }
+
+    /**
+     * Process a GET request by returning a tile.
+     * @param req     HttpServletRequest
+     * @param resp    HttpServletResponse
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        /* which tile? */
+        String path = req.getPathInfo();
+        if (path != null && path.endsWith(".json"))
+            path = path.substring(0, path.length() - 5);
+        String[] parts = path == null ? new String[0] : path.split("/");
+        int z = -1, x = -1, y = -1;
+        try {
+            if (parts.length == 4 && parts[0].isEmpty()) {
+                z = Integer.parseInt(parts[1]);
+                x = Integer.parseInt(parts[2]);
+                y = Integer.parseInt(parts[3]);
+            }
+        } catch (NumberFormatException e) {
+            z = -1;
+        }
+        if (z < 0 || z > MAX_ZOOM || x < 0 || x >= (1 << z) || y < 0 || y >= (1 << z)) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Not found (expecting /tiles/z/x/y)");
+            return;
+        }
+
+        /* which time bucket? */
+        long now = System.currentTimeMillis();
+        String rawWindow = req.getParameter("window");
+        if (rawWindow == null)
+            rawWindow = DEFAULT_WINDOW;
+        long window = -1L, start = -1L;
+        try {
+            window = Duration.parse(rawWindow).toMillis();
+            String rawBucket = req.getParameter("bucket");
+            start = rawBucket == null ? Math.floorDiv(now, window) * window : Instant.parse(rawBucket).toEpochMilli();
+        } catch (DateTimeParseException|ArithmeticException e) {
+            LOGGER.log(Level.SEVERE, "Invalid window or bucket", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid window or bucket)");
+            return;
+        }
+        if (window <= 0L || window % ObsIndex.PARTITION != 0L || window > ObsIndex.RETENTION) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (window must be a multiple of ten minutes, up to six hours)");
+            return;
+        }
+        if (start % window != 0L) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (bucket not aligned to window)");
+            return;
+        }
+        if (start < now - ObsIndex.RETENTION || start > now) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Not found (bucket not available)");
+            return;
+        }
+        boolean closed = start + window + GRACE <= now;
+        boolean settled = closed && ObsFeed.isComplete(start, start + window + GRACE);
+
+        /* the tile's bounds; y counts down from the north */
+        double n = 1 << z;
+        double west = x / n * 360.0 - 180.0;
+        double east = (x + 1) / n * 360.0 - 180.0;
+        double north = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1.0 - 2.0 * y / n))));
+        double south = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1.0 - 2.0 * (y + 1) / n))));
+
+        /* thin the observations, by default to a fraction of a tile */
+        Thinner thinner = null;
+        try {
+            thinner = Thinner.fromParameters(req.getParameter("resolution"),
+                req.getParameter("band"), req.getParameter("maxPoints"));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.SEVERE, "Invalid thinning parameter", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid thinning parameter)");
+            return;
+        }
+        if (thinner == null)
+            thinner = new Thinner(Math.max(Thinner.MIN_RESOLUTION, (east - west) / TILE_CELLS), Thinner.DEFAULT_BAND, 0);
+
+        /* get them, newest first (and in a fixed order, so that nodes
+           holding the same observations make the same tile) */
+        List<Observation> found = new ArrayList<Observation>();
+        ObsIndex.getInstance().query(south, west, north, east, start, start + window - 1L,
+            Integer.MIN_VALUE, Integer.MAX_VALUE, found::add);
+        found.sort(Comparator.comparingLong(Observation::getObserved).thenComparingLong(Observation::getId).reversed());
+        SimpleDateFormat dFormat = (SimpleDateFormat) UTC_TIME.clone();
+        JsonArrayBuilder jaBuilder = Json.createArrayBuilder();
+        for (Observation o : found) {
+            if (thinner.full())
+                break;
+            if (thinner.accept(o.getLatitude(), o.getLongitude(), o.getAltitude()))
+                jaBuilder.add(o.toJson(dFormat));
+        }
+        byte[] body = Json.createObjectBuilder()
+            .add("z", z)
+            .add("x", x)
+            .add("y", y)
+            .add("window", rawWindow)
+            .add("bucket", dFormat.format(new java.util.Date(start)))
+            .add("closed", closed)
+            .add("observations", jaBuilder)
+            .build().toString().getBytes(UTF8);
+
+        /* let caches keep it, for a long time if it can't change */
+        String etag = String.format("\"%08x-%x\"", Arrays.hashCode(body), body.length);
+        resp.setHeader("Cache-Control", "public, max-age=" + (settled ? CLOSED_MAX_AGE : OPEN_MAX_AGE));
+        resp.setHeader("ETag", etag);
+        if (etag.equals(req.getHeader("If-None-Match"))) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        /* send back JSON here */
+        resp.setStatus(200);
+        resp.setContentType("application/json; charset=UTF-8");
+        resp.setContentLength(body.length);
+        OutputStream out = resp.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+}
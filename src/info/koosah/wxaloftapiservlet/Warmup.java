@@ -0,0 +1,187 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.sql.*;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.*;
+import javax.json.stream.JsonParser;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import info.koosah.acarsutils.AcarsMessage;
+import info.koosah.acarsutils.FakeAcarsMessage;
+import info.koosah.acarsutils.wxdecoder.WxDecoder;
+
+/**
+ * Warms things up before we take traffic, so the first requests after a
+ * deploy don't pay for class loading, service provider lookups, pool
+ * creation and JIT compilation. The hot paths are exercised on synthetic
+ * messages; then, in the background so as not to hold up deployment,
+ * the database connections are opened and the client and area caches
+ * are loaded. If the database is unavailable, that part is retried; we
+ * are not ready until it has succeeded.
+ *
+ * Run as a program, this does just the parts that need no database, for
+ * use in generating a class list for AppCDS (see the cds target in
+ * build.xml) and for measuring cold-start time.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class Warmup {
+    private static final Logger LOGGER = Logger.getLogger(Warmup.class.getCanonicalName());
+
+    /* The airlines acarsutils has decoders for. */
+    private static final String[] AIRLINES = new String[] { "AA", "AC", "AM", "AS", "DL", "F9", "FX", "NW", "RV", "WN" };
+
+    /* Enough for the JIT to compile the hot paths. */
+    private static final int ROUNDS = 2000;
+
+    /* How often to retry the database part, in ms. */
+    private static final long RETRY = 5000L;
+
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+    private static volatile boolean ready = false;
+    private static volatile long took = -1L;
+    private static volatile long uptime = -1L;
+
+    /**
+     * Warm up, if that hasn't already been started. Returns once the
+     * parts that need no database are done; the rest goes on in the
+     * background.
+     */
+    public static void start() {
+        if (!started.compareAndSet(false, true))
+            return;
+        long t0 = System.nanoTime();
+        exercise();
+        Thread retry = new Thread(() -> {
+            try {
+                while (!database())
+                    Thread.sleep(RETRY);
+                done(t0);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }, "Warmup");
+        retry.setDaemon(true);
+        retry.start();
+    }
+
+    /**
+     * Have we finished warming up?
+     */
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Report how warming up went.
+     * @return          JSON object.
+     */
+    public static JsonObject toJson() {
+        JsonObjectBuilder b = Json.createObjectBuilder().add("ready", ready);
+        if (ready) {
+            b.add("warmup_ms", took);
+            b.add("ready_uptime_ms", uptime);
+        }
+        return b.build();
+    }
+
+    private static void done(long t0) {
+        took = (System.nanoTime() - t0) / 1000000L;
+        uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        ready = true;
+        LOGGER.log(Level.INFO, String.format("Warmed up in %d ms, ready %d ms after JVM start", took, uptime));
+    }
+
+    /* Run the per-message code on synthetic messages. */
+    private static void exercise() {
+        Random random = new Random(1L);
+        SimpleDateFormat jsonTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXX");
+        jsonTime.setTimeZone(TimeZone.getTimeZone("GMT"));
+        SimpleDateFormat utcTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        utcTime.setTimeZone(TimeZone.getTimeZone("GMT"));
+        java.util.Date now = new java.util.Date();
+        for (int i=0; i<ROUNDS; i++) {
+            String airline = AIRLINES[i % AIRLINES.length];
+            FakeAcarsMessage fake = new FakeAcarsMessage()
+                .setMode('2')
+                .setRegistration(String.format(".N%03d%s", random.nextInt(1000), airline))
+                .setAcknowledge('\u0015')
+                .setLabel("H1")
+                .setBlockId((char) ('1' + random.nextInt(9)))
+                .setMessageId(String.format("M%02d%c", random.nextInt(100), (char) ('A' + random.nextInt(26))))
+                .setFlightId(String.format("%s%04d", airline, random.nextInt(10000)))
+                .setMessage(String.format("#DFB/PIREP WARMUP %06d", random.nextInt(1000000)));
+            String body = Json.createObjectBuilder()
+                .add("auth", "warmup")
+                .add("time", jsonTime.format(now))
+                .add("channel", 131.55)
+                .add("message", LoadTool.serialize(fake))
+                .build().toString();
+
+            /* parse it as ReceiveAcars would */
+            IngestRecord r = null;
+            try (JsonParser parser = Json.createParser(new StringReader(body))) {
+                r = IngestRecord.parse(parser);
+            }
+            try (JsonReader reader = Json.createReader(new StringReader(body))) {
+                reader.read();
+            }
+            AuthTool.hash(r.getAuth());
+            AcarsMessage msg = new AcarsMessage(r.getMessage());
+            if (!msg.parse())
+                continue;
+            try {
+                jsonTime.parse(r.getTime());
+                WxDecoder.forName(msg.getFlightId()).decode(msg, now);
+            } catch (java.text.ParseException|IllegalArgumentException|WxDecoder.UnknownAirlineException e) {
+                /* doesn't matter */
+            }
+
+            /* and as the query servlets would */
+            Observation obs = new Observation(-1L, now.getTime(), now.getTime(), 131.55, 0,
+                random.nextInt(40000), (short) random.nextInt(150), (short) random.nextInt(360),
+                (float) (random.nextInt(80) - 60), msg.getRegistration(),
+                47.0 + random.nextDouble(), -122.0 - random.nextDouble());
+            obs.toJson(utcTime).build().toString();
+        }
+    }
+
+    /* Get the connection pools going and load the caches. */
+    private static boolean database() {
+        try {
+            Context c = (Context) (new InitialContext()).lookup("java:comp/env");
+            try (Connection conn = ((DataSource) c.lookup("jdbc/WxDB")).getConnection()) {
+                Schema.isCompact(conn);
+                int clients = Clients.preload(conn);
+                LOGGER.log(Level.INFO, String.format("Loaded %d client%s", clients, clients==1? "": "s"));
+                conn.prepareStatement("insert into " + Schema.observationsTable(conn) + " (" + Schema.insertColumns(conn) + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)").close();
+            }
+            ReadRouter.getConnection().close();
+            Areas.get();
+            return true;
+        } catch (NamingException|SQLException e) {
+            LOGGER.log(Level.WARNING, "Unable to warm up database connections, will retry", e);
+            return false;
+        }
+    }
+
+    /**
+     * Do the parts that need no database and report how long it took.
+     */
+    public static void main(String[] args) {
+        long t0 = System.nanoTime();
+        exercise();
+        System.out.format("Warmup: %d ms, %d ms after JVM start%n",
+            (System.nanoTime() - t0) / 1000000L, ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+}
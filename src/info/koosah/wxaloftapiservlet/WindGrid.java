@@ -0,0 +1,243 @@
+package info.koosah.wxaloftapiservlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A winds-aloft grid product for each area, maintained incrementally as
+ * observations arrive. Observations are binned into lat/long cells and
+ * altitude bands; each cell keeps a time-decayed vector-mean wind, mean
+ * and variance of temperature, a count of observations in the last
+ * WINDOW and the latest observation time. Cells that see no observations
+ * for WINDOW are evicted by a periodic sweep. Observations arrive from
+ * ObsFeed, which tails the observations table, so the grid includes
+ * those received by every node, a second or two after they are recorded.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class WindGrid {
+    /** Size of a grid cell, in degrees of latitude and longitude. */
+    public static final double CELL_DEGREES = 0.5;
+
+    /** Depth of an altitude band, in feet. */
+    public static final int BAND_FEET = 2000;
+
+    /** How long until an observation's weight halves, in ms. */
+    public static final long HALF_LIFE = 60L * 60L * 1000L;
+
+    /** How long a cell survives without new observations, in ms. */
+    public static final long WINDOW = 3L * 60L * 60L * 1000L;
+
+    /* Counts are kept in slots this long, in ms; so the window a count
+       covers is only accurate to this. */
+    private static final long SLOT = 15L * 60L * 1000L;
+    private static final int SLOTS = (int) (WINDOW / SLOT) + 1;
+
+    /* How often to sweep out dead cells, in ms. */
+    private static final long SWEEP_INTERVAL = 5L * 60L * 1000L;
+
+    private static final double TAU = HALF_LIFE / Math.log(2.0);
+    private static final WindGrid INSTANCE = new WindGrid();
+
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<Long, Cell>> areas = new ConcurrentHashMap<Integer, ConcurrentHashMap<Long, Cell>>();
+    private final ScheduledExecutorService sweeper;
+
+    private WindGrid() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "windgrid");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the grid shared by all servlets.
+     */
+    public static WindGrid getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Add an observation to the grid for an area.
+     */
+    public void add(int areaId, Observation obs) {
+        long now = System.currentTimeMillis();
+        if (now - obs.getObserved() > WINDOW)
+            return;
+        int latIndex = (int) Math.floor(obs.getLatitude() / CELL_DEGREES);
+        int lonIndex = (int) Math.floor(obs.getLongitude() / CELL_DEGREES);
+        int band = band(obs.getAltitude());
+        ConcurrentHashMap<Long, Cell> cells = areas.computeIfAbsent(areaId, k -> new ConcurrentHashMap<Long, Cell>());
+        long key = key(latIndex, lonIndex, band);
+        /* if the sweeper kills the cell under us, make a new one */
+        while (!cells.computeIfAbsent(key, k -> new Cell(latIndex, lonIndex, band)).add(obs, now))
+            ;
+    }
+
+    /**
+     * Remove all cells that have seen nothing for WINDOW. A cell is marked
+     * dead before it is removed, and only removed if it is still the one
+     * in the map, so an add() racing with this is never lost.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (ConcurrentHashMap<Long, Cell> cells : areas.values()) {
+            for (Map.Entry<Long, Cell> e : cells.entrySet()) {
+                if (e.getValue().kill(now))
+                    cells.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Get the current state of the grid for an area.
+     * @param areaId    Area ID.
+     * @param band      Altitude band to return, or null for all.
+     * @return          Snapshots of the live cells.
+     */
+    public List<Snapshot> get(int areaId, Integer band) {
+        List<Snapshot> ret = new ArrayList<Snapshot>();
+        Map<Long, Cell> cells = areas.get(areaId);
+        if (cells == null)
+            return ret;
+        long now = System.currentTimeMillis();
+        for (Cell c : cells.values()) {
+            if (band != null && c.band != band)
+                continue;
+            Snapshot s = c.snapshot(now);
+            if (s != null)
+                ret.add(s);
+        }
+        return ret;
+    }
+
+    /**
+     * Which altitude band contains the specified altitude?
+     */
+    public static int band(int altitude) {
+        return Math.floorDiv(altitude, BAND_FEET);
+    }
+
+    private static long key(int latIndex, int lonIndex, int band) {
+        return ((long) (latIndex & 0xffff) << 32) | ((long) (lonIndex & 0xffff) << 16) | (band & 0xffff);
+    }
+
+    /* One grid cell. All sums are weighted and are decayed to the time in
+       "stamp" whenever they are touched. */
+    private static class Cell {
+        final int latIndex, lonIndex, band;
+        long stamp = 0L;
+        long latest = 0L;
+        boolean dead = false;
+        final long[] slotIndex = new long[SLOTS];
+        final long[] slotCount = new long[SLOTS];
+        double windWeight = 0.0, sumU = 0.0, sumV = 0.0;
+        double tempWeight = 0.0, sumT = 0.0, sumT2 = 0.0;
+
+        Cell(int latIndex, int lonIndex, int band) {
+            this.latIndex = latIndex;
+            this.lonIndex = lonIndex;
+            this.band = band;
+        }
+
+        private void decay(long now) {
+            if (now <= stamp)
+                return;
+            double f = stamp == 0L ? 1.0 : Math.exp(-(now - stamp) / TAU);
+            windWeight *= f; sumU *= f; sumV *= f;
+            tempWeight *= f; sumT *= f; sumT2 *= f;
+            stamp = now;
+        }
+
+        synchronized boolean add(Observation obs, long now) {
+            if (dead)
+                return false;
+            decay(now);
+            double w = Math.exp(-Math.max(0L, now - obs.getObserved()) / TAU);
+            if (obs.hasWind()) {
+                windWeight += w;
+                sumU += w * obs.getWindU();
+                sumV += w * obs.getWindV();
+            }
+            if (obs.getTemperature() != null) {
+                double t = obs.getTemperature();
+                tempWeight += w;
+                sumT += w * t;
+                sumT2 += w * t * t;
+            }
+            long slot = Math.floorDiv(obs.getObserved(), SLOT);
+            int i = (int) Math.floorMod(slot, (long) SLOTS);
+            if (slotIndex[i] < slot) {
+                slotIndex[i] = slot;
+                slotCount[i] = 0L;
+            }
+            if (slotIndex[i] == slot)
+                slotCount[i]++;
+            if (obs.getObserved() > latest)
+                latest = obs.getObserved();
+            return true;
+        }
+
+        /* Mark this cell dead if it has seen nothing for WINDOW. */
+        synchronized boolean kill(long now) {
+            if (now - latest > WINDOW)
+                dead = true;
+            return dead;
+        }
+
+        /* How many observations are in the window ending now. */
+        private long count(long now) {
+            long first = Math.floorDiv(now - WINDOW, SLOT);
+            long ret = 0L;
+            for (int i=0; i<SLOTS; i++)
+                if (slotIndex[i] >= first)
+                    ret += slotCount[i];
+            return ret;
+        }
+
+        synchronized Snapshot snapshot(long now) {
+            if (now - latest > WINDOW)
+                return null;
+            decay(now);
+            Snapshot s = new Snapshot();
+            s.latitude = (latIndex + 0.5) * CELL_DEGREES;
+            s.longitude = (lonIndex + 0.5) * CELL_DEGREES;
+            s.altitude = band * BAND_FEET + BAND_FEET / 2;
+            s.count = count(now);
+            s.latest = latest;
+            if (windWeight > 0.0) {
+                double u = sumU / windWeight;
+                double v = sumV / windWeight;
+                s.windSpeed = Math.hypot(u, v);
+                s.windDirection = Observation.direction(u, v);
+            }
+            if (tempWeight > 0.0) {
+                double mean = sumT / tempWeight;
+                s.temperature = mean;
+                s.temperatureVariance = Math.max(0.0, sumT2 / tempWeight - mean * mean);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * The state of a grid cell at some instant.
+     */
+    public static class Snapshot {
+        public double latitude;
+        public double longitude;
+        public int altitude;
+        public long count;
+        public long latest;
+        public Double windSpeed;
+        public Integer windDirection;
+        public Double temperature;
+        public Double temperatureVariance;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * An optional, more compact alternative to the observations and obs_area
+ * tables in wxaloft_db_schema.sql, for sites where the working set of
+ * observations no longer fits in the buffer pool. Create everything else
+ * from that file, then create these instead of its observations table,
+ * obs_delete trigger and obs_area table. The servlets and tools notice
+ * obs_compact and use it automatically.
+ *
+ * Rows in obs_compact are 48 bytes of data instead of 67: latitude and
+ * longitude are in units of 1e-5 degree (about a metre), frequency is in
+ * kHz, and the registration, which repeats on every observation from an
+ * aircraft, is an index into the registrations table. Obs_area has no
+ * surrogate key; its primary key leads with area_id so that the rows for
+ * an area are clustered together.
+ */
+create table obs_compact (
+    id          bigint not null auto_increment primary key,
+    received    timestamp null,
+    observed    timestamp null,
+    frequency   int,
+    client_id   int not null,
+    altitude    int,
+    wind_speed  smallint,
+    wind_dir    smallint,
+    temperature float,
+    source_id   int,
+    latitude    int,
+    longitude   int );
+
+create table registrations (
+    id          int not null auto_increment primary key,
+    reg         char(7) not null );
+
+create unique index reg_ndx on registrations (reg);
+
+create table obs_area (
+    observation_id bigint not null,
+    area_id     int not null,
+    primary key (area_id, observation_id) );
+
+create index obs_ndx on obs_area (observation_id);
+
+/* when we delete an observation, we should delete from obs_area, too */
+delimiter $EOD
+create trigger obs_delete after delete on obs_compact
+    for each row begin
+        delete from obs_area where observation_id = old.id;
+    end$EOD
+delimiter ;
+
+/*
+ * The observations as the rest of the code expects to see them. Anything
+ * that inserts or deletes must use obs_compact directly.
+ */
+create view observations as
+    select obs_compact.id as id, received, observed,
+        obs_compact.frequency / 1e3 as frequency, client_id, altitude,
+        wind_speed, wind_dir, temperature, registrations.reg as source,
+        obs_compact.latitude / 1e5 as latitude,
+        obs_compact.longitude / 1e5 as longitude
+    from obs_compact left join registrations
+        on registrations.id = obs_compact.source_id;
+
+/*
+ * To convert an existing database (with the servlets stopped):
+ *
+ * rename table observations to obs_old, obs_area to obs_area_old;
+ * drop trigger obs_delete;
+ * -- create the tables, trigger and view above, then:
+ * insert into registrations (reg)
+ *     select distinct source from obs_old where source is not null;
+ * insert into obs_compact
+ *     select obs_old.id, received, observed, round(frequency * 1000),
+ *         client_id, altitude, wind_speed, wind_dir, temperature,
+ *         registrations.id, round(latitude * 100000),
+ *         round(longitude * 100000)
+ *     from obs_old left join registrations on registrations.reg = obs_old.source;
+ * insert into obs_area (observation_id, area_id)
+ *     select distinct observation_id, area_id from obs_area_old;
+ * drop table obs_old, obs_area_old;
+ */
@@ -30,6 +30,9 @@ delimeter ;
 
 /*
  * Each authorized client of the web service that receives ACARS data.
+ * Rate (messages per second) and burst limit how fast a client may send
+ * us data; null means use the defaults configured in web.xml, and a rate
+ * of zero or less means unlimited.
  */
 create table clients (
     id          int not null auto_increment primary key,
@@ -37,7 +40,9 @@ create table clients (
     name        varchar(32),
     location_id int not null,
     log_all     boolean,
-    record_wx   boolean );
+    record_wx   boolean,
+    rate        float null,
+    burst       int null );
     
 create unique index auth_ndx on clients (auth);
 
@@ -96,7 +101,113 @@ create table obs_area (
     observation_id bigint not null,
     area_id     int not null );
     
-create index obs_ndx on obs_area (observation_id);
+/* unique, so that AreaTool and live ingest can both insert ignore */
+create unique index obs_ndx on obs_area (observation_id, area_id);
+
+/*
+ * To migrate an existing database:
+ *
+ * delete a from obs_area a join obs_area b
+ *     on a.observation_id = b.observation_id and a.area_id = b.area_id
+ *     and a.id > b.id;
+ * alter table obs_area drop index obs_ndx,
+ *     add unique index obs_ndx (observation_id, area_id);
+ */
+
+/*
+ * Hourly summaries of observations per grid cell and altitude band, kept
+ * after the raw observations are purged. Cells are 0.5 degree of latitude
+ * and longitude (lat_cell = floor(latitude / 0.5)), bands 2000 feet
+ * (band = floor(altitude / 2000)), and hour is the number of hours since
+ * the Unix epoch.
+ * Wind is kept as sums of its east (u) and north (v) components, so the
+ * mean vector can be found and further observations added in. Rollup_state
+ * holds the ID of the last observation rolled up; PurgeTool deletes no
+ * observations after it. It also holds the highest ID seen by the last
+ * run and when, since IDs can commit out of order; a run only rolls up
+ * to an ID noted at least a few minutes before. To add these to an
+ * existing database:
+ *
+ * alter table rollup_state add column next_id bigint not null default 0,
+ *     add column noted timestamp null;
+ */
+create table rollups (
+    hour        int not null,
+    lat_cell    smallint not null,
+    lon_cell    smallint not null,
+    band        smallint not null,
+    count       int not null,
+    wind_count  int not null,
+    sum_u       double not null,
+    sum_v       double not null,
+    temp_count  int not null,
+    sum_t       double not null,
+    min_t       float null,
+    max_t       float null,
+    primary key (hour, lat_cell, lon_cell, band) );
+
+create table rollup_state (
+    last_id     bigint not null,
+    next_id     bigint not null default 0,
+    noted       timestamp null );
+
+insert into rollup_state (last_id) values (0);
+
+/*
+ * A log of changes to the small, rarely-changed tables that the servlets
+ * cache in memory (clients, frequencies, areas). Each node polls this
+ * for recent entries and drops the affected cache entries; entries over
+ * a day old are pruned. Row_id is the client ID for clients and
+ * frequencies, and the area ID for areas. The triggers below fill it in,
+ * however the change is made.
+ */
+create table change_log (
+    id          bigint not null auto_increment primary key,
+    tbl         varchar(32) not null,
+    row_id      int null,
+    changed     timestamp default current_timestamp );
+
+create index changed_ndx on change_log (changed);
+
+delimiter $EOD
+create trigger clients_insert after insert on clients
+    for each row begin
+        insert into change_log (tbl, row_id) values ('clients', new.id);
+    end$EOD
+create trigger clients_update after update on clients
+    for each row begin
+        insert into change_log (tbl, row_id) values ('clients', old.id);
+    end$EOD
+create trigger clients_delete after delete on clients
+    for each row begin
+        insert into change_log (tbl, row_id) values ('clients', old.id);
+    end$EOD
+create trigger frequencies_insert after insert on frequencies
+    for each row begin
+        insert into change_log (tbl, row_id) values ('frequencies', new.client_id);
+    end$EOD
+create trigger frequencies_update after update on frequencies
+    for each row begin
+        insert into change_log (tbl, row_id) values ('frequencies', old.client_id);
+        insert into change_log (tbl, row_id) values ('frequencies', new.client_id);
+    end$EOD
+create trigger frequencies_delete after delete on frequencies
+    for each row begin
+        insert into change_log (tbl, row_id) values ('frequencies', old.client_id);
+    end$EOD
+create trigger areas_insert after insert on areas
+    for each row begin
+        insert into change_log (tbl, row_id) values ('areas', new.id);
+    end$EOD
+create trigger areas_update after update on areas
+    for each row begin
+        insert into change_log (tbl, row_id) values ('areas', old.id);
+    end$EOD
+create trigger areas_delete after delete on areas
+    for each row begin
+        insert into change_log (tbl, row_id) values ('areas', old.id);
+    end$EOD
+delimiter ;
 
 /* distance in km between two lat/long points */
 delimiter $EOD